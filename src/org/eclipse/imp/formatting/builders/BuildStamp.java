@@ -0,0 +1,113 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.builders;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.QualifiedName;
+import org.eclipse.imp.formatting.Activator;
+
+/**
+ * The persistent property in which the builder records what a specification
+ * was compiled from. It reads <code>source+dependency...:artifact</code>,
+ * with the MD5 digests of the specification, of the language files it
+ * depends upon and of its artifact.
+ */
+final class BuildStamp {
+	static final QualifiedName KEY = new QualifiedName(Activator.kPluginID, "buildStamp");
+
+	private BuildStamp() {
+	}
+
+	/**
+	 * @return the stamp of an artifact compiled from a specification whose
+	 *         contents and dependencies have the given digest
+	 */
+	static String create(String sourceDigest, byte[] artifact) {
+		String artifactDigest = digest(new ByteArrayInputStream(artifact));
+
+		return artifactDigest != null ? sourceDigest + ":" + artifactDigest : null;
+	}
+
+	/**
+	 * @return true iff the stamp was made for the given digest of a
+	 *         specification and its dependencies, and the given artifact digest
+	 */
+	static boolean matches(String stamp, String sourceDigest, String artifactDigest) {
+		return stamp != null && artifactDigest != null && stamp.equals(sourceDigest + ":" + artifactDigest);
+	}
+
+	/**
+	 * @return true iff the stamp was made for a specification whose contents
+	 *         alone have the given digest, and the given artifact digest
+	 */
+	static boolean matchesContents(String stamp, String contentsDigest, String artifactDigest) {
+		int colon = stamp != null ? stamp.lastIndexOf(':') : -1;
+
+		if (colon == -1 || contentsDigest == null || artifactDigest == null) {
+			return false;
+		}
+
+		String source = stamp.substring(0, colon);
+		int plus = source.indexOf('+');
+
+		if (plus != -1) {
+			source = source.substring(0, plus);
+		}
+		return source.equals(contentsDigest) && stamp.substring(colon + 1).equals(artifactDigest);
+	}
+
+	static String digest(IFile file) {
+		try {
+			return digest(file.getContents());
+		} catch (CoreException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the hexadecimal MD5 digest of a stream, which is closed, or null
+	 *         if it could not be read
+	 */
+	static String digest(InputStream in) {
+		try {
+			try {
+				MessageDigest md = MessageDigest.getInstance("MD5");
+				byte[] buffer = new byte[8192];
+				int read;
+
+				while ((read = in.read(buffer)) != -1) {
+					md.update(buffer, 0, read);
+				}
+
+				StringBuilder hex = new StringBuilder();
+				for (byte b : md.digest()) {
+					hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+					hex.append(Character.forDigit(b & 0xf, 16));
+				}
+				return hex.toString();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+}
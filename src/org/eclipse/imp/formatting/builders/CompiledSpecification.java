@@ -0,0 +1,347 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.builders;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Separator;
+import org.eclipse.imp.formatting.spec.Specification;
+
+/**
+ * The binary form of a formatting specification, written by the
+ * FormattingSpecificationBuilder next to the XML source. The editor loads it
+ * instead of parsing the XML when the build stamp shows it is current.
+ *
+ * The artifact holds the language, the example, the space option table and,
+ * for every rule, its Box string and its preview pattern.
+ *
+ * The LPG parse trees of Box expressions and patterns can not be serialized,
+ * so they are not part of the artifact; they are cheap to rebuild from the
+ * stored strings when a rule is first used.
+ */
+public class CompiledSpecification {
+	/**
+	 * The file extension of compiled specifications.
+	 */
+	public static final String EXTENSION = "fspc";
+
+	/**
+	 * The version of the format. Artifacts with another version are ignored
+	 * and rebuilt.
+	 */
+	public static final int VERSION = 2;
+
+	private static final int MAGIC = 0x46535043; // "FSPC"
+
+	private static final byte RULE = 0;
+
+	private static final byte SEPARATOR = 1;
+
+	private final String fLanguage;
+
+	private final String fExample;
+
+	private final Map<String, Integer> fOptions;
+
+	private final List<Entry> fEntries;
+
+	private CompiledSpecification(String language, String example, Map<String, Integer> options, List<Entry> entries) {
+		fLanguage = language;
+		fExample = example;
+		fOptions = options;
+		fEntries = entries;
+	}
+
+	/**
+	 * @return the full path of the artifact compiled from the given
+	 *         specification file
+	 */
+	public static IPath getArtifactPath(IPath source) {
+		return source.removeFileExtension().addFileExtension(EXTENSION);
+	}
+
+	/**
+	 * Compiles a specification to its binary form.
+	 */
+	public static byte[] compile(Specification spec) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		Iterator<Item> iter = spec.ruleIterator();
+
+		while (iter.hasNext()) {
+			Item item = iter.next();
+
+			if (item instanceof Rule) {
+				Rule rule = (Rule) item;
+				entries.add(new Entry(RULE, null, rule.getBoxString(), rule.getPatternString()));
+			} else if (item instanceof Separator) {
+				entries.add(new Entry(SEPARATOR, ((Separator) item).getLabel(), null, null));
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, spec.getLanguage());
+		writeString(out, spec.getExample());
+
+		Map<String, Integer> options = new LinkedHashMap<String, Integer>();
+		Iterator<String> names = spec.getSpaceOptions();
+
+		while (names.hasNext()) {
+			String name = names.next();
+			Integer value = spec.getSpaceOption(name);
+
+			if (value != null) {
+				options.put(name, value);
+			}
+		}
+
+		out.writeInt(options.size());
+		for (Map.Entry<String, Integer> option : options.entrySet()) {
+			writeString(out, option.getKey());
+			out.writeInt(option.getValue().intValue());
+		}
+
+		out.writeInt(entries.size());
+		for (Entry entry : entries) {
+			out.writeByte(entry.fKind);
+			writeString(out, entry.fLabel);
+			writeString(out, entry.fBoxString);
+			writeString(out, entry.fPattern);
+		}
+
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Loads the artifact compiled from the given specification file.
+	 *
+	 * @return null if there is no artifact, if the build stamp of the
+	 *         specification does not match the digests of the specification
+	 *         and the artifact, or if the artifact was written in another
+	 *         version of the format
+	 */
+	public static CompiledSpecification load(IFile source) {
+		IFile artifact = source.getWorkspace().getRoot().getFile(getArtifactPath(source.getFullPath()));
+
+		if (!artifact.exists()) {
+			return null;
+		}
+
+		try {
+			String stamp = source.getPersistentProperty(BuildStamp.KEY);
+
+			if (stamp == null) {
+				return null;
+			}
+
+			byte[] bytes = readContents(artifact);
+
+			if (!BuildStamp.matchesContents(stamp, BuildStamp.digest(source), BuildStamp.digest(new ByteArrayInputStream(bytes)))) {
+				return null;
+			}
+			return read(new ByteArrayInputStream(bytes));
+		} catch (CoreException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static byte[] readContents(IFile file) throws CoreException, IOException {
+		InputStream in = file.getContents();
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a compiled specification.
+	 *
+	 * @throws IOException
+	 *             if the stream does not contain a compiled specification of
+	 *             the current version
+	 */
+	public static CompiledSpecification read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a compiled formatting specification");
+		}
+
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Compiled formatting specification has version " + version + ", expected " + VERSION);
+		}
+
+		String language = readString(in);
+		String example = readString(in);
+
+		int count = in.readInt();
+		Map<String, Integer> options = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < count; i++) {
+			String name = readString(in);
+			options.put(name, Integer.valueOf(in.readInt()));
+		}
+
+		count = in.readInt();
+		List<Entry> entries = new ArrayList<Entry>(count);
+		for (int i = 0; i < count; i++) {
+			byte kind = in.readByte();
+			entries.add(new Entry(kind, readString(in), readString(in), readString(in)));
+		}
+
+		return new CompiledSpecification(language, example, Collections.unmodifiableMap(options), Collections.unmodifiableList(entries));
+	}
+
+	public String getLanguage() {
+		return fLanguage;
+	}
+
+	public String getExample() {
+		return fExample;
+	}
+
+	/**
+	 * @return the space options, in the order of the specification
+	 */
+	public Map<String, Integer> getSpaceOptions() {
+		return fOptions;
+	}
+
+	/**
+	 * @return the rules and separators, in the order of the specification
+	 */
+	public List<Entry> getEntries() {
+		return fEntries;
+	}
+
+	/**
+	 * Rebuilds an editable specification, without the pattern ASTs.
+	 */
+	public Specification toSpecification(Parser parser) {
+		Specification spec = new Specification(fLanguage, parser);
+
+		spec.setExample(fExample);
+
+		for (Map.Entry<String, Integer> option : fOptions.entrySet()) {
+			spec.setSpaceOption(option.getKey(), option.getValue());
+		}
+
+		for (Entry entry : fEntries) {
+			if (entry.isRule()) {
+				Rule rule = new Rule();
+				rule.setBoxString(entry.getBoxString());
+				rule.setPatternString(entry.getPattern());
+				spec.addRule(rule);
+			} else {
+				Separator separator = new Separator();
+				separator.setLabel(entry.getLabel());
+				spec.addRule(separator);
+			}
+		}
+
+		return spec;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * A rule or a separator of a compiled specification.
+	 */
+	public static class Entry {
+		private final byte fKind;
+
+		private final String fLabel;
+
+		private final String fBoxString;
+
+		private final String fPattern;
+
+		private Entry(byte kind, String label, String boxString, String pattern) {
+			fKind = kind;
+			fLabel = label;
+			fBoxString = boxString;
+			fPattern = pattern;
+		}
+
+		public boolean isRule() {
+			return fKind == RULE;
+		}
+
+		/**
+		 * @return the label of a separator
+		 */
+		public String getLabel() {
+			return fLabel;
+		}
+
+		public String getBoxString() {
+			return fBoxString;
+		}
+
+		public String getPattern() {
+			return fPattern;
+		}
+	}
+}
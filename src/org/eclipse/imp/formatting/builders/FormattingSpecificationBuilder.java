@@ -11,18 +11,54 @@
 
 package org.eclipse.imp.formatting.builders;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.QualifiedName;
+import org.eclipse.core.runtime.SubProgressMonitor;
 import org.eclipse.imp.builder.BuilderBase;
+import org.eclipse.imp.builder.DependencyInfo;
 import org.eclipse.imp.formatting.Activator;
+import org.eclipse.imp.formatting.metatooling.LanguageBinding;
+import org.eclipse.imp.formatting.metatooling.Metrics;
 import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Specification;
 import org.eclipse.imp.language.Language;
 import org.eclipse.imp.language.LanguageRegistry;
-import org.eclipse.imp.model.ISourceProject;
+import org.eclipse.imp.model.ModelFactory;
 import org.eclipse.imp.runtime.PluginBase;
 import org.eclipse.imp.utils.NullMessageHandler;
+import org.eclipse.imp.utils.StreamUtils;
 
 /**
  * @author
@@ -42,6 +78,50 @@ public class FormattingSpecificationBuilder extends BuilderBase {
 
 	public static final Language LANGUAGE = LanguageRegistry.findLanguage(LANGUAGE_NAME);
 
+	/**
+	 * Persistent property of a specification file, holding the paths it
+	 * depends upon, one per line.
+	 */
+	private static final QualifiedName DEPENDENCIES = new QualifiedName(Activator.kPluginID, "dependencies");
+
+	/**
+	 * Builder argument that turns parallel compilation off when set to
+	 * "false".
+	 */
+	public static final String PARALLEL_ARG = "parallel";
+
+	/**
+	 * The files queued for compilation by the running build, or null outside
+	 * of a build.
+	 */
+	private List<IFile> fPending;
+
+	/**
+	 * The queued files that must be compiled even if their digest did not
+	 * change, or null outside of a build.
+	 */
+	private Set<IFile> fForced;
+
+	private Set<IContainer> fFoldersToRefresh;
+
+	private static final String PLUGIN_XML = "plugin.xml";
+
+	private static final IPath MANIFEST = new Path("META-INF/MANIFEST.MF");
+
+	private static final Pattern LANGUAGE_ELEMENT = Pattern.compile("<language>([a-zA-Z0-9_]+)</language>");
+
+	/**
+	 * The language descriptors found by the running build, per language.
+	 */
+	private Map<String, List<IFile>> fDescriptors;
+
+	/**
+	 * The bindings of the languages of the specifications compiled so far.
+	 * They are kept between builds, so the workspace bundles of a language
+	 * are only activated again after one of them was rebuilt.
+	 */
+	private final Map<String, LanguageBinding> fBindings = new HashMap<String, LanguageBinding>();
+
 	protected PluginBase getPlugin() {
 		return Activator.getInstance();
 	}
@@ -76,62 +156,557 @@ public class FormattingSpecificationBuilder extends BuilderBase {
 	 *         unit.<br>
 	 *         <code>isNonRootSourceFile()</code> and
 	 *         <code>isSourceFile()</code> should never return true for the
-	 *         same file.
+	 *         same file.<br>
+	 *         These are the plugin.xml and manifest files of language
+	 *         bundles, which specifications depend upon.
 	 */
 	protected boolean isNonRootSourceFile(IFile resource) {
-		// TODO: If your language has non-root source files (e.g., header
-		// files), then
-		// reimplement this method to test for those
-		System.err.println("FormattingSpecificationBuilder.isNonRootSourceFile(..) returning FALSE by default");
-		return false;
+		IPath path = resource.getProjectRelativePath();
+
+		return PLUGIN_XML.equals(path.toString()) || MANIFEST.equals(path);
 	}
 
 	/**
-	 * Collects compilation-unit dependencies for the given file, and records
-	 * them via calls to <code>fDependency.addDependency()</code>.
+	 * Records the dependencies of a specification on the bundles of its
+	 * language: the plugin.xml, the manifest and the class folder of every
+	 * project whose plugin.xml describes the language, or contributes
+	 * services to it. They are also stored on the specification, so they are
+	 * known again after a restart.
 	 */
 	protected void collectDependencies(IFile file) {
-		// TODO: If your langauge has inter-file dependencies then reimplement
-		// this method to collect those
-		System.err.println("FormattingSpecificationBuilder.collectDependencies(..) doing nothing by default");
-		return;
+		String from = file.getFullPath().toString();
+
+		fDependencyInfo.clearDependenciesOf(from);
+
+		if (!isSourceFile(file)) {
+			return;
+		}
+
+		String language = readLanguageName(file);
+		StringBuilder stored = new StringBuilder();
+
+		if (language != null) {
+			for (IFile descriptor : getLanguageDescriptors(language)) {
+				IProject project = descriptor.getProject();
+
+				for (IPath path : LanguageBinding.getBundlePaths(project)) {
+					String upon = project.getFullPath().append(path).toString();
+
+					fDependencyInfo.addDependency(from, upon);
+					stored.append(upon).append('\n');
+				}
+			}
+		}
+
+		try {
+			file.setPersistentProperty(DEPENDENCIES, stored.length() > 0 ? stored.toString() : null);
+		} catch (CoreException e) {
+			// collected again by the next full build
+		}
+	}
+
+	/**
+	 * Restores the dependencies stored on the specifications of the project,
+	 * so the first build after a restart still finds the specifications that
+	 * depend on a changed language bundle.
+	 */
+	protected DependencyInfo createDependencyInfo(IProject project) {
+		final Dependencies result = new Dependencies(project);
+
+		try {
+			project.accept(new IResourceVisitor() {
+				public boolean visit(IResource resource) throws CoreException {
+					if (resource instanceof IFile && isSourceFile((IFile) resource)) {
+						String stored = resource.getPersistentProperty(DEPENDENCIES);
+
+						if (stored != null) {
+							String from = resource.getFullPath().toString();
+
+							for (String upon : stored.split("\n")) {
+								result.addDependency(from, upon);
+							}
+						}
+					}
+					return resource.getType() == IResource.PROJECT || !isOutputFolder(resource);
+				}
+			});
+		} catch (CoreException e) {
+			// collected again by the next full build
+		}
+		return result;
 	}
 
 	protected boolean isOutputFolder(IResource resource) {
 		return resource.getFullPath().lastSegment().equals("bin");
 	}
 
+	/**
+	 * Runs the build of BuilderBase, which only queues the files to compile
+	 * (see {@link #compile(IFile, IProgressMonitor)}), and then compiles the
+	 * queued files in parallel. The parent folders of the compiled files are
+	 * refreshed once, at the end.
+	 *
+	 * Set the builder argument {@link #PARALLEL_ARG} to "false" to compile one
+	 * file at a time.
+	 *
+	 * BuilderBase only sees changes to source files in the project being
+	 * built, so the specifications that depend on a changed language bundle,
+	 * in this project or another one, are queued here. The other projects are
+	 * returned, such that their deltas are available to the next build.
+	 */
+	protected IProject[] build(int kind, Map args, IProgressMonitor monitor) throws CoreException {
+		fPending = new ArrayList<IFile>();
+		fForced = new HashSet<IFile>();
+		fFoldersToRefresh = new LinkedHashSet<IContainer>();
+		forgetLanguageDescriptors();
+		invalidateChangedBindings();
+
+		try {
+			IProject[] result = super.build(kind, args, monitor);
+			Set<IProject> projects = queueDependentsOfBundleChanges();
+
+			compileAll(fPending, getThreadCount(args), monitor);
+
+			for (IContainer folder : fFoldersToRefresh) {
+				doRefresh(folder);
+			}
+
+			if (result != null) {
+				projects.addAll(Arrays.asList(result));
+			}
+			return projects.toArray(new IProject[projects.size()]);
+		} finally {
+			fPending = null;
+			fForced = null;
+			fFoldersToRefresh = null;
+			forgetLanguageDescriptors();
+		}
+	}
+
 	protected void compile(final IFile file, IProgressMonitor monitor) {
+		if (fPending != null) {
+			fPending.add(file);
+			return;
+		}
+
+		fFoldersToRefresh = new LinkedHashSet<IContainer>();
 		try {
-			System.out.println("Builder.compile with file = " + file.getName());
+			compileAll(Collections.singletonList(file), 1, monitor);
 
-			runParserForCompiler(file, monitor);
+			for (IContainer folder : fFoldersToRefresh) {
+				doRefresh(folder);
+			}
+		} finally {
+			fFoldersToRefresh = null;
+		}
+	}
 
-			doRefresh(file.getParent());
-		} catch (Exception e) {
-			getPlugin().writeErrorMsg(e.getMessage());
+	/**
+	 * Parses and compiles the given files on a pool of threads. The results
+	 * are written to the workspace on the calling thread, which holds the
+	 * scheduling rule of the build, in the order of the files.
+	 */
+	protected void compileAll(List<IFile> files, int threads, IProgressMonitor monitor) {
+		if (files.size() == 0) {
+			return;
+		}
 
-			e.printStackTrace();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Formatting specification compiler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<Compilation>> results = new ArrayList<Future<Compilation>>(files.size());
+
+		for (final IFile file : files) {
+			results.add(pool.submit(new Callable<Compilation>() {
+				public Compilation call() throws Exception {
+					return compileInBackground(file);
+				}
+			}));
+		}
+
+		// the given monitor is the one of the whole build
+		IProgressMonitor progress = new SubProgressMonitor(monitor, files.size());
+
+		progress.beginTask("Compiling formatting specifications", files.size());
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				IFile file = files.get(i);
+				IProgressMonitor fileProgress = new SubProgressMonitor(progress, 1);
+
+				progress.subTask(file.getName());
+				fileProgress.beginTask("", 1);
+				try {
+					apply(await(results.get(i), fileProgress), fileProgress);
+				} catch (ExecutionException e) {
+					getPlugin().writeErrorMsg(e.getCause().getMessage());
+					e.getCause().printStackTrace();
+				} catch (CoreException e) {
+					getPlugin().writeErrorMsg(e.getMessage());
+					e.printStackTrace();
+				} finally {
+					fileProgress.done();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			progress.done();
 		}
 	}
 
-	protected void runParserForCompiler(final IFile file,
-			IProgressMonitor monitor) {
+	/**
+	 * Queues the specifications that depend on a part of a language bundle
+	 * that changed since the last build. Those are compiled even if their
+	 * digest is unchanged, as the digest does not cover the classes of the
+	 * bundle.
+	 *
+	 * @return the other projects holding such bundles
+	 */
+	private Set<IProject> queueDependentsOfBundleChanges() {
+		Set<IProject> projects = new LinkedHashSet<IProject>();
+		IWorkspaceRoot root = getProject().getWorkspace().getRoot();
+
+		for (String upon : ((Dependencies) fDependencyInfo).getUponPaths()) {
+			IPath path = new Path(upon);
+			IProject project = root.getProject(path.segment(0));
+			IResourceDelta delta = getDelta(project);
+
+			if (!project.equals(getProject())) {
+				projects.add(project);
+			}
+
+			// without a delta, nothing is known about the project
+			if (delta != null && delta.findMember(path.removeFirstSegments(1)) == null) {
+				continue;
+			}
+
+			for (String dependent : fDependencyInfo.getDependentsOf(upon)) {
+				IFile file = root.getFile(new Path(dependent));
+
+				if (!file.exists()) {
+					continue;
+				}
+				if (!fPending.contains(file)) {
+					fPending.add(file);
+				}
+				if (delta != null) {
+					fForced.add(file);
+				}
+			}
+		}
+		return projects;
+	}
+
+	/**
+	 * @return the plugin.xml files in the workspace that mention the given
+	 *         language. Cached for the duration of a build; may be called on
+	 *         any thread.
+	 */
+	private synchronized List<IFile> getLanguageDescriptors(String language) {
+		if (fDescriptors == null) {
+			fDescriptors = new HashMap<String, List<IFile>>();
+		}
+
+		List<IFile> result = fDescriptors.get(language);
+
+		if (result == null) {
+			Pattern mention = Pattern.compile("\\blanguage\\s*=\\s*\"" + Pattern.quote(language) + "\"");
+			result = new ArrayList<IFile>();
+
+			for (IProject project : getProject().getWorkspace().getRoot().getProjects()) {
+				if (!project.isOpen()) {
+					continue;
+				}
+
+				IFile pluginXml = project.getFile(new Path(PLUGIN_XML));
+
+				try {
+					if (pluginXml.exists() && mention.matcher(StreamUtils.readStreamContents(pluginXml.getContents())).find()) {
+						result.add(pluginXml);
+					}
+				} catch (CoreException e) {
+					// out of sync; not a dependency we can track
+				}
+			}
+			fDescriptors.put(language, result);
+		}
+		return result;
+	}
+
+	private synchronized void forgetLanguageDescriptors() {
+		fDescriptors = null;
+	}
+
+	/**
+	 * @return the binding for the given language, which activates the
+	 *         workspace bundles that its parser needs. May be called on any
+	 *         thread.
+	 */
+	private synchronized LanguageBinding getBinding(String language) {
+		LanguageBinding binding = fBindings.get(language);
+
+		if (binding == null) {
+			binding = new LanguageBinding();
+			fBindings.put(language, binding);
+		}
+		return binding;
+	}
+
+	/**
+	 * Drops the bindings whose workspace bundles were rebuilt since the last
+	 * build, so they are activated again before the next compilation.
+	 */
+	private synchronized void invalidateChangedBindings() {
+		IProject[] projects = getProject().getWorkspace().getRoot().getProjects();
+
+		for (LanguageBinding binding : fBindings.values()) {
+			for (IProject project : projects) {
+				if (binding.isAffectedBy(project, getDelta(project))) {
+					binding.rebuilt();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the name in the &lt;language&gt; element of a specification, or
+	 *         null if there is none
+	 */
+	private static String readLanguageName(IFile file) {
 		try {
-			// TODO bind extension points here to!
-			IPath path = file.getProjectRelativePath();
-			Parser p = new Parser(path, (ISourceProject) file.getProject(), new NullMessageHandler());
+			Matcher m = LANGUAGE_ELEMENT.matcher(StreamUtils.readStreamContents(file.getContents()));
+
+			return m.find() ? m.group(1) : null;
+		} catch (CoreException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the digest of a specification and of the language descriptors
+	 *         and manifests it depends upon, or null if one of them could not
+	 *         be read
+	 */
+	private String digestWithDependencies(IFile file) {
+		String result = BuildStamp.digest(file);
+		String language = readLanguageName(file);
+
+		if (result == null || language == null) {
+			return result;
+		}
+
+		for (IFile descriptor : getLanguageDescriptors(language)) {
+			String d = BuildStamp.digest(descriptor);
+
+			if (d == null) {
+				return null;
+			}
+			result += "+" + d;
+
+			IFile manifest = descriptor.getProject().getFile(MANIFEST);
+
+			if (manifest.exists()) {
+				d = BuildStamp.digest(manifest);
+
+				if (d == null) {
+					return null;
+				}
+				result += "+" + d;
+			}
+		}
+		return result;
+	}
+
+	private int getThreadCount(Map args) {
+		if (args != null && "false".equals(args.get(PARALLEL_ARG))) {
+			return 1;
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private Compilation await(Future<Compilation> result, IProgressMonitor monitor) throws ExecutionException {
+		while (true) {
+			if (monitor.isCanceled()) {
+				throw new OperationCanceledException();
+			}
 
 			try {
-				p.parse(path);
-			} catch (Exception e) {
-				// TODO change exception type and do something serious with this
+				return result.get(100, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// check for cancellation again
+			} catch (InterruptedException e) {
+				throw new OperationCanceledException();
 			}
+		}
+	}
+
+	/**
+	 * Does the part of compiling a file that does not modify the workspace.
+	 * Runs on a worker thread.
+	 */
+	private Compilation compileInBackground(IFile file) throws Exception {
+		// taken before parsing, such that an edit made during the build
+		// triggers another compilation
+		String sourceDigest = digestWithDependencies(file);
+
+		// fForced is not changed while the workers run
+		if (sourceDigest != null && (fForced == null || !fForced.contains(file)) && isUpToDate(file, sourceDigest)) {
+			return null;
+		}
+
+		// not the Activator imported above, which is the formatting plugin's
+		Metrics metrics = org.eclipse.imp.formatting.metatooling.Activator.getMetrics();
+		long start = metrics.start();
+		Specification spec = runParserForCompiler(file, null);
+
+		metrics.stop(Metrics.SPEC_LOAD, start);
+		start = metrics.start();
+
+		byte[] artifact = spec != null ? CompiledSpecification.compile(spec) : null;
+
+		metrics.stop(Metrics.BUILD_COMPILE, start);
+
+		return new Compilation(file, sourceDigest, artifact);
+	}
+
+	private void apply(Compilation compilation, IProgressMonitor monitor) throws CoreException {
+		if (compilation == null) {
+			return;
+		}
+
+		IFile file = compilation.fFile;
+		byte[] artifact = compilation.fArtifact;
+
+		Metrics metrics = org.eclipse.imp.formatting.metatooling.Activator.getMetrics();
+		long start = metrics.start();
+
+		writeArtifact(file, artifact, monitor);
+		metrics.stop(Metrics.BUILD_WRITE, start);
+		file.setPersistentProperty(BuildStamp.KEY, artifact != null && compilation.fSourceDigest != null ? BuildStamp.create(compilation.fSourceDigest, artifact) : null);
+		fFoldersToRefresh.add(file.getParent());
+	}
 
-			doRefresh(file.getParent());
+	/**
+	 * Parses a specification, after binding its language such that the
+	 * parser of the language is available. May be called on any thread.
+	 *
+	 * @return the specification, or null if it has errors
+	 */
+	protected Specification runParserForCompiler(final IFile file,
+			IProgressMonitor monitor) {
+		String language = readLanguageName(file);
+		IPath path = file.getProjectRelativePath();
+
+		try {
+			if (language != null) {
+				getBinding(language).bind(language);
+			}
+
+			Parser p = new Parser(path, ModelFactory.open(file.getProject()), new NullMessageHandler());
+
+			return p.parse(path);
 		} catch (Exception e) {
-			getPlugin().writeErrorMsg(e.getMessage());
-			e.printStackTrace();
+			// TODO change exception type and do something serious with this
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the compiled form of a specification next to it, or removes a
+	 * stale one if the specification could not be compiled.
+	 */
+	protected void writeArtifact(IFile file, byte[] artifact, IProgressMonitor monitor) throws CoreException {
+		IFile target = file.getWorkspace().getRoot().getFile(CompiledSpecification.getArtifactPath(file.getFullPath()));
+
+		if (artifact == null) {
+			if (target.exists()) {
+				target.delete(true, monitor);
+			}
+		} else if (target.exists()) {
+			target.setContents(new ByteArrayInputStream(artifact), IResource.FORCE, monitor);
+		} else {
+			target.create(new ByteArrayInputStream(artifact), true, monitor);
+			target.setDerived(true);
+		}
+	}
+
+	/**
+	 * @return true iff neither the specification, whose contents have the
+	 *         given digest, nor its artifact changed since the specification
+	 *         was last compiled
+	 */
+	protected boolean isUpToDate(IFile file, String sourceDigest) throws CoreException {
+		String stamp = file.getPersistentProperty(BuildStamp.KEY);
+
+		if (stamp == null) {
+			return false;
+		}
+
+		IFile target = file.getWorkspace().getRoot().getFile(CompiledSpecification.getArtifactPath(file.getFullPath()));
+
+		if (!target.exists()) {
+			return false;
+		}
+
+		return BuildStamp.matches(stamp, sourceDigest, BuildStamp.digest(target));
+	}
+
+	/**
+	 * Dependency information that also knows all the paths depended upon, so
+	 * they can be looked up in the deltas of their projects.
+	 */
+	private static class Dependencies extends DependencyInfo {
+		private final Map<String, Set<String>> fUpon = new HashMap<String, Set<String>>();
+
+		public Dependencies(IProject project) {
+			super(project);
+		}
+
+		public void addDependency(String from, String upon) {
+			super.addDependency(from, upon);
+
+			Set<String> paths = fUpon.get(from);
+
+			if (paths == null) {
+				paths = new HashSet<String>();
+				fUpon.put(from, paths);
+			}
+			paths.add(upon);
+		}
+
+		public void clearDependenciesOf(String from) {
+			super.clearDependenciesOf(from);
+			fUpon.remove(from);
+		}
+
+		public Set<String> getUponPaths() {
+			Set<String> result = new HashSet<String>();
+
+			for (Set<String> paths : fUpon.values()) {
+				result.addAll(paths);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The outcome of compiling a file on a worker thread.
+	 */
+	private static class Compilation {
+		private final IFile fFile;
+
+		private final String fSourceDigest;
+
+		private final byte[] fArtifact;
+
+		public Compilation(IFile file, String sourceDigest, byte[] artifact) {
+			fFile = file;
+			fSourceDigest = sourceDigest;
+			fArtifact = artifact;
 		}
 	}
 }
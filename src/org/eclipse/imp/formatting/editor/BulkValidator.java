@@ -0,0 +1,123 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+/**
+ * Validates many rules at once on a pool of worker threads. The validator
+ * takes a parser of its own from its ParserPool for every rule, so rules are
+ * parsed in parallel as well as formatted in parallel.
+ *
+ * The results are passed to a listener, on the calling thread, in the order
+ * in which they complete, and progress is reported per rule. A rule whose
+ * validation throws is reported as failed, and the other rules are still
+ * validated.
+ */
+public class BulkValidator {
+	/**
+	 * Receives the result of every validated rule.
+	 */
+	public interface Listener {
+		void validated(RuleValidator.Result result);
+	}
+
+	/**
+	 * How often a waiting caller checks whether it was canceled.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	private final RuleValidator fValidator;
+
+	private final int fThreads;
+
+	public BulkValidator(RuleValidator validator, int threads) {
+		fValidator = validator;
+		fThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Validates the given requests, which must have been prepared on the
+	 * thread that owns the model. Returns early if the monitor is canceled.
+	 */
+	public IStatus validate(List<RuleValidator.Request> requests, Listener listener, IProgressMonitor monitor) {
+		if (requests.size() == 0) {
+			return Status.OK_STATUS;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(fThreads, requests.size()), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Validating formatting rules");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		CompletionService<RuleValidator.Result> done = new ExecutorCompletionService<RuleValidator.Result>(pool);
+		Map<Future<RuleValidator.Result>, RuleValidator.Request> submitted = new HashMap<Future<RuleValidator.Result>, RuleValidator.Request>();
+
+		monitor.beginTask("Validating formatting rules", requests.size());
+		try {
+			for (final RuleValidator.Request request : requests) {
+				submitted.put(done.submit(new Callable<RuleValidator.Result>() {
+					public RuleValidator.Result call() throws Exception {
+						return fValidator.validate(request);
+					}
+				}), request);
+			}
+
+			for (int i = 0; i < requests.size(); i++) {
+				Future<RuleValidator.Result> result;
+
+				while ((result = done.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+					if (monitor.isCanceled()) {
+						return Status.CANCEL_STATUS;
+					}
+				}
+
+				RuleValidator.Result validated;
+
+				try {
+					validated = result.get();
+				} catch (ExecutionException e) {
+					validated = RuleValidator.Result.failed(submitted.get(result), e.getCause());
+				}
+				listener.validated(validated);
+
+				monitor.worked(1);
+				if (monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
+			}
+			return Status.OK_STATUS;
+		} catch (InterruptedException e) {
+			return Status.CANCEL_STATUS;
+		} finally {
+			pool.shutdownNow();
+			monitor.done();
+		}
+	}
+}
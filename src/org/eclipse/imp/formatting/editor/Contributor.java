@@ -11,12 +11,22 @@
 
 package org.eclipse.imp.formatting.editor;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.eclipse.imp.formatting.metatooling.Activator;
+import org.eclipse.imp.formatting.metatooling.Metrics;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.IAction;
 import org.eclipse.jface.action.IMenuManager;
 import org.eclipse.jface.action.IToolBarManager;
 import org.eclipse.jface.action.MenuManager;
 import org.eclipse.jface.action.Separator;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.IActionBars;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IWorkbenchActionConstants;
@@ -181,6 +191,20 @@ public class Contributor extends EditorActionBarContributor {
 				}
 			}
 		});
+		manager.add(new Action("Validate all") {
+			public void run() {
+				IEditorPart editor = getPage().getActiveEditor();
+				if (editor instanceof Editor) {
+					Editor e = (Editor) editor;
+					e.validateAll();
+				}
+			}
+		});
+		manager.add(new Action("Metrics") {
+			public void run() {
+				exportMetrics();
+			}
+		});
 // Disabled because Box formatter is not a part of The Meta-Environment yet
 //		manager.add(new Action("Format rule") {
 //			public void run() {
@@ -193,4 +217,44 @@ public class Contributor extends EditorActionBarContributor {
 //		});
 		
 	}
+
+	/**
+	 * Starts recording metrics, or saves what was recorded as JSON and starts
+	 * over.
+	 */
+	private void exportMetrics() {
+		Metrics metrics = Activator.getMetrics();
+		Shell shell = getPage().getWorkbenchWindow().getShell();
+
+		if (!metrics.isEnabled()) {
+			metrics.reset();
+			metrics.setEnabled(true);
+			MessageDialog.openInformation(shell, "Formatting metrics", "Recording metrics. Press Metrics again to save them.");
+			return;
+		}
+
+		FileDialog dialog = new FileDialog(shell, SWT.SAVE);
+		dialog.setText("Save formatting metrics");
+		dialog.setFilterExtensions(new String[] { "*.json" });
+		dialog.setFileName("formatting-metrics.json");
+
+		String path = dialog.open();
+
+		if (path == null) {
+			return;
+		}
+
+		try {
+			OutputStream out = new FileOutputStream(path);
+
+			try {
+				out.write(metrics.toJSON().getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			metrics.setEnabled(false);
+		} catch (IOException e) {
+			MessageDialog.openError(shell, "Formatting metrics", "Could not write " + path + ": " + e.getMessage());
+		}
+	}
 }
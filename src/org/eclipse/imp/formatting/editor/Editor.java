@@ -11,9 +11,6 @@
 
 package org.eclipse.imp.formatting.editor;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,20 +23,25 @@ import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.imp.box.interpreter.BoxInterpreter;
-import org.eclipse.imp.box.parser.BoxParseController;
-import org.eclipse.imp.box.parser.Ast.IBox;
-import org.eclipse.imp.formatting.spec.ExtensionPointBinder;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.imp.box.builders.BoxException;
+import org.eclipse.imp.formatting.builders.CompiledSpecification;
+import org.eclipse.imp.formatting.metatooling.Activator;
+import org.eclipse.imp.formatting.metatooling.BoxRenderer;
+import org.eclipse.imp.formatting.metatooling.LanguageBinding;
+import org.eclipse.imp.formatting.metatooling.Metrics;
+import org.eclipse.imp.formatting.metatooling.transform.BoxTransformer;
 import org.eclipse.imp.formatting.spec.ParseException;
 import org.eclipse.imp.formatting.spec.Parser;
 import org.eclipse.imp.formatting.spec.Specification;
 import org.eclipse.imp.formatting.spec.Transformer;
 import org.eclipse.imp.formatting.spec.Unparser;
-import org.eclipse.imp.language.Language;
 import org.eclipse.imp.language.LanguageRegistry;
 import org.eclipse.imp.model.ISourceProject;
 import org.eclipse.imp.model.ModelFactory;
-import org.eclipse.imp.utils.DynamicBundleUtils;
+import org.eclipse.imp.services.IASTAdapter;
 import org.eclipse.imp.utils.ExtensionPointUtils;
 import org.eclipse.imp.utils.SavingMessageHandler;
 import org.eclipse.imp.utils.StreamUtils;
@@ -68,7 +70,6 @@ import org.eclipse.ui.editors.text.TextEditor;
 import org.eclipse.ui.ide.IDE;
 import org.eclipse.ui.part.FileEditorInput;
 import org.eclipse.ui.part.MultiPageEditorPart;
-import org.osgi.framework.Bundle;
 
 /**
  * This is the start of a prototype generic formatting tool for IMP.
@@ -92,6 +93,12 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 	private static final int ExampleEditorIndex = 1;
 
 	private static final int OptionEditorIndex = 2;
+
+	/**
+	 * Milliseconds to wait before reformatting the example; requests that
+	 * arrive within this window are coalesced into a single run.
+	 */
+	private static final long ReformatDelay = 300;
 	
 	protected TextEditor fEditor;
 
@@ -115,23 +122,54 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 
 	private Color fNormalColor;
 
+	private ReformatJob fReformatJob;
+
 	/**
-	 * The dynamically-activated Bundle containing the language descriptor for the language
-	 * whose formatter is being edited. If non-null, this will invariably refer to a workspace
-	 * project. Saved so it can be dynamically uninstalled when the editor closes, if needed.
+	 * Incremented on the UI thread whenever the example changes or a new
+	 * reformat is requested. Results computed for an older generation are
+	 * dropped instead of being applied to the example text.
 	 */
-    private Bundle fLanguageProjectBundle;
+	private int fReformatGeneration = 0;
 
-    /**
-     * The dynamically-activated Bundle containing the formatting extension for the language
-     * whose formatter is being edited. If non-null, this will invariably refer to a workspace
-     * project. Saved so it can be dynamically uninstalled when the editor closes, if needed.
-     */
-    private Bundle fFormattingProjectBundle;
+	/**
+	 * The object language, its AST adapter and the workspace bundles that
+	 * provide them; resolved once per editor session.
+	 */
+	private LanguageBinding fBinding = new LanguageBinding();
+
+	private SpecificationWriter fWriter = new SpecificationWriter();
+
+	/**
+	 * Where fParser was made for, to make more parsers like it.
+	 */
+	private IPath fParserPath;
+
+	private ISourceProject fSourceProject;
+
+	/**
+	 * Binds the language before every new parser, which activates its bundles
+	 * again if the binding was invalidated since the last one.
+	 */
+	private final ParserFactory fParserFactory = new ParserFactory() {
+		public Parser newParser() {
+			fBinding.bind(fModel.getLanguage());
+
+			Parser parser = new Parser(fParserPath, fSourceProject, new SavingMessageHandler());
+
+			parser.setLanguage(fModel.getLanguage());
+			return parser;
+		}
+	};
+
+	/**
+	 * Parsers for the example and the rules, independent of fParser, which
+	 * belongs to the model.
+	 */
+	private final ParserPool fParserPool = new ParserPool(fParserFactory);
 
 	public Editor() {
 		super();
-		ResourcesPlugin.getWorkspace().addResourceChangeListener(this);
+		ResourcesPlugin.getWorkspace().addResourceChangeListener(this, IResourceChangeEvent.PRE_CLOSE | IResourceChangeEvent.POST_BUILD);
 		LanguageRegistry.getLanguages();
 	}
 
@@ -148,16 +186,20 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 
 		fExampleText.setFont(fSampleFont);
 
+		fReformatJob = new ReformatJob(fExampleText.getDisplay());
+
 		fExampleModifyListener = new ModifyListener() {
 			public void modifyText(ModifyEvent e) {
 				fModel.setExample(fExampleText.getText());
 				fExampleModified = true;
 				firePropertyChange(PROP_DIRTY);
 
-				Object ast = fParser.parseObject(fExampleText.getText());
-				if (ast != null) {
-					fModel.setExampleAst(ast);
-				}
+				// a pending reformat would overwrite what the user just typed,
+				// so it is replaced by a request to only parse the example
+				fReformatGeneration++;
+				fReformatJob.cancel();
+				fReformatJob.request(fExampleText.getText(), null, fReformatGeneration);
+				fReformatJob.schedule(ReformatDelay);
 			}
 		};
 		fExampleText.addModifyListener(fExampleModifyListener);
@@ -200,9 +242,11 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 		createExampleViewer();
 		createOptionEditor();
 
+		fRuleTable.setParserPool(fParserPool);
 		fRuleTable.setModel(fModel);
 		fSpaceTable.setModel(fModel);
 		updateExample();
+		fRuleTable.validateAll(false);
 
 		fExampleModified = false;
 	}
@@ -214,6 +258,11 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 				firePropertyChange(PROP_DIRTY);
 			}
 		});
+		fSpaceTable.addSpaceOptionListener(new ISpaceOptionListener() {
+			public void spaceOptionChanged(String name) {
+				fRuleTable.spaceOptionChanged(name);
+			}
+		});
 
 		try {
 			addPage(OptionEditorIndex, fSpaceTable, getEditorInput());
@@ -252,6 +301,21 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 			ISourceProject sp = ModelFactory.open(project);
 
 			fParser = new Parser(fullFilePath, sp, new SavingMessageHandler());
+			fParserPath = fullFilePath;
+			fSourceProject = sp;
+
+			// the artifact of the builder has the rules without XML to parse
+			CompiledSpecification compiled = CompiledSpecification.load(file);
+
+			if (compiled != null && compiled.getLanguage().length() > 0) {
+			    long start = Activator.getMetrics().start();
+
+			    fBinding.bind(compiled.getLanguage());
+			    fParser.setLanguage(compiled.getLanguage());
+			    fModel = compiled.toSpecification(fParser);
+			    Activator.getMetrics().stop(Metrics.SPEC_LOAD, start);
+			    return fModel;
+			}
 
 			String editorText = StreamUtils.readStreamContents(file.getContents());
 
@@ -263,7 +327,7 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 			    }
 
 				if (langName.length() > 0) {
-				    activateWorkspaceBundles(langName);
+				    fBinding.bind(langName);
 				    fParser.setLanguage(langName);
 
 				    Specification skelSpec= new Specification(langName, fParser);
@@ -281,10 +345,15 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 			    if (m.find()) {
 			        String langName= m.group(1);
 
-			        activateWorkspaceBundles(langName);
+			        fBinding.bind(langName);
 			    }
 			    fParser.getMessageHandler().clearMessages();
-			    fModel = fParser.load(editorText);
+			    long start = Activator.getMetrics().start();
+			    try {
+			        fModel = fParser.load(editorText);
+			    } finally {
+			        Activator.getMetrics().stop(Metrics.SPEC_LOAD, start);
+			    }
 			    fParser.getMessageHandler().endMessages();
 			    // TODO perhaps place messages on the model?
 			    return fModel;
@@ -315,78 +384,199 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 		return "";
 	}
 
-	private void activateWorkspaceBundles(String langName) {
-	    // Note: the extensions for the languageDescription and the formattingDescription may
-	    // reside in the same bundle. If so, that's ok; activateWorkspaceBundleForExtension()
-	    // is a no-op if the bundle in question is already loaded/activated.
-        fLanguageProjectBundle= DynamicBundleUtils.activateWorkspaceBundleForLanguage(langName);
-        if (fLanguageProjectBundle != null) {
-            fFormattingProjectBundle= DynamicBundleUtils.activateWorkspaceBundleForExtension(langName, "org.eclipse.imp.formatting.formattingSpecification");
+    /**
+     * Schedules the example to be reformatted in the background, with a
+     * snapshot of the rules and options. Requests that arrive while a
+     * previous one is still waiting or running supersede it; only the most
+     * recent result is applied to the example text.
+     */
+    private void reformatExample() {
+        fReformatGeneration++;
+        fReformatJob.cancel();
+        fReformatJob.request(fModel.getExample(), new SpecificationSnapshot(fModel), fReformatGeneration);
+        fReformatJob.schedule(ReformatDelay);
+    }
+
+    private void applyReformatResult(int generation, String newExample, String ast, String errors) {
+        if (fExampleText == null || fExampleText.isDisposed() || generation != fReformatGeneration) {
+            return; // superseded by a later edit or request
+        }
+
+        if (errors == null) {
+            if (newExample != null) {
+                fExampleText.removeModifyListener(fExampleModifyListener);
+                fExampleText.setText(newExample);
+                fExampleText.addModifyListener(fExampleModifyListener);
+                fExampleText.append(ast);
+            }
+            fExampleText.setBackground(fNormalColor);
         } else {
-            fFormattingProjectBundle= null;
+            fExampleText.setToolTipText(errors);
+            fExampleText.setBackground(fErrorColor);
         }
     }
 
-    @SuppressWarnings("unused")
-    private void deactivateWorkspaceBundles() {
-        if (fLanguageProjectBundle != null) {
-            DynamicBundleUtils.deactivateWorkspaceBundle(fLanguageProjectBundle);
-            fLanguageProjectBundle= null;
+    /**
+     * Parses, transforms and interprets the example off the UI thread, and
+     * hands the outcome back to the editor with <code>asyncExec</code>. The
+     * job never reads the model: it formats with the snapshot it was given,
+     * and only parses the example if it was given none.
+     */
+    private class ReformatJob extends Job {
+        private final Display fDisplay;
+
+        private String fExample;
+
+        private SpecificationSnapshot fSnapshot;
+
+        private int fGeneration;
+
+        /**
+         * Kept between reformats, so that the parts of the example that were
+         * not edited are not translated again; built again when the rules or
+         * options change.
+         */
+        private BoxTransformer fTransformer;
+
+        private String fTransformerKey;
+
+        public ReformatJob(Display display) {
+            super("Formatting example");
+            fDisplay = display;
+            setSystem(true);
+            setPriority(Job.SHORT);
         }
-        if (fFormattingProjectBundle != null) {
-            DynamicBundleUtils.deactivateWorkspaceBundle(fFormattingProjectBundle);
-            fFormattingProjectBundle= null;
+
+        /**
+         * Makes the next reformat build a new transformer, whose patterns
+         * are parsed with the classes of a rebuilt language.
+         */
+        public synchronized void forgetTransformer() {
+            fTransformerKey = null;
         }
-    }
 
-    private void reformatExample() {
-        fParser.getMessageHandler().clearMessages();
-
-        String exampleStr= fModel.getExample();
-		Object ast = fParser.parseObject(exampleStr);
-
-		if (ast != null) {
-			fModel.setExampleAst(ast);
-
-			try {
-				Language objectLanguage = LanguageRegistry.findLanguage(fModel.getLanguage());
-
-				activateWorkspaceBundles(objectLanguage.getName());
-
-				ExtensionPointBinder b = new ExtensionPointBinder(objectLanguage);
-
-				Transformer t = new Transformer(fModel, b.getASTAdapter());
-				String boxStr = t.transformToBox(exampleStr, fModel.getExampleAst());
-				IBox box= BoxParseController.parseBox(boxStr);
-				BoxInterpreter bi = new BoxInterpreter();
-                String newExample = bi.interpret(box);
-
-				fExampleText.removeModifyListener(fExampleModifyListener);
-				fExampleText.setText(newExample);
-				fExampleText.addModifyListener(fExampleModifyListener);
-	            fExampleText.append(ast.toString());
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (Exception e) {
-				// TODO: something useful
-				e.printStackTrace();
-			}
-			fExampleText.setBackground(fNormalColor);
-		} else {
-		    SavingMessageHandler smh= (SavingMessageHandler) fParser.getMessageHandler();
-		    String allMsgs= smh.getConcatenatedMessages();
-		    fExampleText.setToolTipText(allMsgs);
-		    fExampleText.setBackground(fErrorColor);
-		}
-	}
+        /**
+         * @param snapshot
+         *            the rules to format with, or null to only parse
+         */
+        public synchronized void request(String example, SpecificationSnapshot snapshot, int generation) {
+            fExample = example;
+            fSnapshot = snapshot;
+            fGeneration = generation;
+        }
+
+        protected IStatus run(IProgressMonitor monitor) {
+            String exampleStr;
+            SpecificationSnapshot snapshot;
+            final int generation;
+
+            synchronized (this) {
+                exampleStr = fExample;
+                snapshot = fSnapshot;
+                generation = fGeneration;
+            }
+
+            if (exampleStr == null) {
+                return Status.OK_STATUS;
+            }
+
+            ParserPool.Parsed parsed = fParserPool.parseObject(exampleStr);
+            final Object ast = parsed.getAst();
+            String errors = parsed.getMessages();
+
+            if (monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+
+            String newExample = null;
+
+            if (ast != null && snapshot != null) {
+                try {
+                    IASTAdapter adapter = fBinding.getASTAdapter(snapshot.getLanguage());
+                    String boxStr;
+
+                    // patterns without an AST yet are parsed on the way
+                    Parser parser = fParserPool.acquire();
+
+                    try {
+                        Specification spec = snapshot.toSpecification(parser);
+                        BoxTransformer transformer = getTransformer(snapshot, spec, adapter);
+
+                        if (transformer != null) {
+                            boxStr = transformer.transformToBox(exampleStr, ast);
+                        } else {
+                            long start = Activator.getMetrics().start();
+                            boxStr = new Transformer(spec, adapter).transformToBox(exampleStr, ast);
+                            Activator.getMetrics().stop(Metrics.TRANSFORM, start);
+                        }
+                    } finally {
+                        fParserPool.release(parser);
+                    }
+
+                    if (monitor.isCanceled()) {
+                        return Status.CANCEL_STATUS;
+                    }
+
+                    newExample = BoxRenderer.box2Text(boxStr);
+                } catch (Exception e) {
+                    // TODO: something useful
+                    e.printStackTrace();
+                }
+            }
+
+            if (monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+
+            final String result = newExample;
+            final String messages = errors;
+
+            if (!fDisplay.isDisposed()) {
+                fDisplay.asyncExec(new Runnable() {
+                    public void run() {
+                        if (ast != null && generation == fReformatGeneration) {
+                            fModel.setExampleAst(ast);
+                        }
+                        applyReformatResult(generation, result, ast == null ? null : ast.toString(), messages);
+                    }
+                });
+            }
+            return Status.OK_STATUS;
+        }
+
+        /**
+         * @param spec
+         *            the specification of the snapshot, to build a new
+         *            transformer from
+         * @return the transformer for the rules and options of the snapshot,
+         *         or null if a rule has a Box expression it can not handle
+         */
+        private BoxTransformer getTransformer(SpecificationSnapshot snapshot, Specification spec, IASTAdapter adapter) {
+            boolean changed;
+
+            synchronized (this) {
+                changed = !snapshot.getKey().equals(fTransformerKey);
+                fTransformerKey = snapshot.getKey();
+            }
+
+            if (changed) {
+                try {
+                    fTransformer = new BoxTransformer(spec, adapter);
+                } catch (BoxException e) {
+                    fTransformer = null;
+                }
+            }
+            return fTransformer;
+        }
+    }
 
 	public void dispose() {
 		ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
-		deactivateWorkspaceBundles();
+		if (fReformatJob != null) {
+			fReformatJob.cancel();
+		}
+		fBinding.invalidate();
+		fParserPool.clear();
 		fSampleFont.dispose();
 		fErrorColor.dispose();
 		fNormalColor.dispose();
@@ -399,8 +589,7 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 			String contents = u.unparse(fModel);
 			
 			IFile file = ((FileEditorInput) getEditorInput()).getFile();
-			InputStream s = new ByteArrayInputStream(contents.getBytes());
-			file.setContents(s, 0, monitor);
+			fWriter.save(file, contents, monitor);
 			
 			fRuleTable.setDirty(false);
 			fSpaceTable.setDirty(false);
@@ -432,7 +621,15 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 	}
 
 	public void resourceChanged(final IResourceChangeEvent event) {
-		if (event.getType() == IResourceChangeEvent.PRE_CLOSE) {
+		if (event.getType() == IResourceChangeEvent.POST_BUILD) {
+			// the cached language binding refers to classes of the old build
+			if (fBinding.isAffectedBy(event.getDelta())) {
+				fBinding.rebuilt();
+				fParserPool.clear();
+				fRuleTable.languageChanged();
+				fReformatJob.forgetTransformer();
+			}
+		} else if (event.getType() == IResourceChangeEvent.PRE_CLOSE) {
 			Display.getDefault().asyncExec(new Runnable() {
 				public void run() {
 					IWorkbenchPage[] pages = getSite().getWorkbenchWindow().getPages();
@@ -483,6 +680,10 @@ public class Editor extends MultiPageEditorPart implements IResourceChangeListen
 		fRuleTable.formatRule();
 	}
 
+	public void validateAll() {
+		fRuleTable.validateAll(true);
+	}
+
 	public void addRuleFromExample() {
 		fRuleTable.addRuleFromExample();
 	}
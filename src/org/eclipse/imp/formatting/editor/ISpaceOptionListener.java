@@ -0,0 +1,25 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+/**
+ * Notified by the SpaceOptionTable when a space option is added, removed,
+ * renamed or gets a new value.
+ */
+public interface ISpaceOptionListener {
+	/**
+	 * @param name
+	 *            the name of the option that changed. For a rename this is
+	 *            called for the old and for the new name.
+	 */
+	void spaceOptionChanged(String name);
+}
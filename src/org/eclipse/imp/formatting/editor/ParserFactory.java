@@ -0,0 +1,26 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import org.eclipse.imp.formatting.spec.Parser;
+
+/**
+ * Creates parsers equivalent to the parser of a specification. A Parser is
+ * not thread-safe, so every thread that parses needs its own.
+ */
+public interface ParserFactory {
+	/**
+	 * @return a new parser for the language of the specification, with a
+	 *         SavingMessageHandler
+	 */
+	Parser newParser();
+}
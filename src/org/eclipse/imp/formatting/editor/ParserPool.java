@@ -0,0 +1,151 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.utils.SavingMessageHandler;
+
+/**
+ * Independent parsers for the language of one specification, so rules,
+ * previews and the example can be parsed on several threads at once. A
+ * parser is used by one caller at a time, between {@link #acquire()} and
+ * {@link #release(Parser)}, so the messages in its SavingMessageHandler are
+ * those of that caller only.
+ *
+ * Parsers are made by a {@link ParserFactory} when no idle one is left, and
+ * at most {@link #MAX_IDLE} of them are kept for reuse.
+ */
+public class ParserPool {
+	/**
+	 * The maximum number of idle parsers kept.
+	 */
+	public static final int MAX_IDLE = 8;
+
+	private final ParserFactory fFactory;
+
+	private final List<Parser> fIdle = new ArrayList<Parser>();
+
+	/**
+	 * Incremented by {@link #clear()}, so parsers made before are not
+	 * returned to the pool.
+	 */
+	private int fGeneration = 0;
+
+	private final List<Parser> fCurrent = new ArrayList<Parser>();
+
+	public ParserPool(ParserFactory factory) {
+		fFactory = factory;
+	}
+
+	/**
+	 * @return a parser for exclusive use, with no messages
+	 */
+	public Parser acquire() {
+		int generation;
+
+		synchronized (this) {
+			if (fIdle.size() > 0) {
+				return fIdle.remove(fIdle.size() - 1);
+			}
+			generation = fGeneration;
+		}
+
+		// making a parser can be slow, so it is not done while locked
+		Parser parser = fFactory.newParser();
+
+		synchronized (this) {
+			if (generation == fGeneration) {
+				fCurrent.add(parser);
+			}
+		}
+		return parser;
+	}
+
+	/**
+	 * Returns a parser obtained from {@link #acquire()} to the pool. The
+	 * caller must not use it anymore.
+	 */
+	public void release(Parser parser) {
+		parser.getMessageHandler().clearMessages();
+
+		synchronized (this) {
+			if (fIdle.size() < MAX_IDLE && fCurrent.contains(parser)) {
+				fIdle.add(parser);
+			} else {
+				fCurrent.remove(parser);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all parsers, for instance because the language they were made
+	 * for was rebuilt. Parsers in use are dropped when they are released.
+	 */
+	public synchronized void clear() {
+		fIdle.clear();
+		fCurrent.clear();
+		fGeneration++;
+	}
+
+	/**
+	 * Parses object language text with a parser of the pool.
+	 */
+	public Parsed parseObject(String text) {
+		Parser parser = acquire();
+
+		try {
+			Object ast = parser.parseObject(text);
+			return new Parsed(ast, ast == null ? getMessages(parser) : null);
+		} finally {
+			release(parser);
+		}
+	}
+
+	/**
+	 * @return the messages of the last parse of a parser obtained from this
+	 *         pool
+	 */
+	public static String getMessages(Parser parser) {
+		return ((SavingMessageHandler) parser.getMessageHandler()).getConcatenatedMessages();
+	}
+
+	/**
+	 * The outcome of one parse, with the messages of that parse only.
+	 */
+	public static class Parsed {
+		private final Object fAst;
+
+		private final String fMessages;
+
+		public Parsed(Object ast, String messages) {
+			fAst = ast;
+			fMessages = messages;
+		}
+
+		/**
+		 * @return the AST, or null if the text did not parse
+		 */
+		public Object getAst() {
+			return fAst;
+		}
+
+		/**
+		 * @return the messages if the text did not parse, or null
+		 */
+		public String getMessages() {
+			return fMessages;
+		}
+	}
+}
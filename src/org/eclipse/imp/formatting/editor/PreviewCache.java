@@ -0,0 +1,190 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.imp.formatting.spec.Specification;
+
+/**
+ * A bounded, least-recently-used cache for the results of formatting Box
+ * rules in the rule table. Formatting a Box string spawns the external Box
+ * tools, and parsing the formatted preview runs the object language parser,
+ * so both are remembered here.
+ *
+ * Formatted previews depend on the values of the space options, so they are
+ * keyed on the Box string together with a snapshot of the options it refers
+ * to (see {@link #snapshotOptions(Specification, String)}). Pattern AST's
+ * only depend on the preview text.
+ *
+ * This class is thread-safe.
+ */
+public class PreviewCache {
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final Map<Key, Preview> fPreviews;
+
+	private final Map<String, Object> fPatterns;
+
+	public PreviewCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PreviewCache(int capacity) {
+		fPreviews = new LRUMap<Key, Preview>(capacity);
+		fPatterns = new LRUMap<String, Object>(capacity);
+	}
+
+	/**
+	 * @return a canonical representation of the current space options of the
+	 *         given specification, to be used as part of a preview key
+	 */
+	public static String snapshotOptions(Specification spec) {
+		Map<String, Integer> sorted = new TreeMap<String, Integer>();
+		Iterator<String> iter = spec.getSpaceOptions();
+
+		while (iter.hasNext()) {
+			String name = iter.next();
+			sorted.put(name, spec.getSpaceOption(name));
+		}
+		return sorted.toString();
+	}
+
+	/**
+	 * @return a canonical representation of the space options whose names
+	 *         occur in the given Box string, the only options that the
+	 *         SpaceOptionBinder can substitute into it
+	 */
+	public static String snapshotOptions(Specification spec, String boxString) {
+		Map<String, Integer> sorted = new TreeMap<String, Integer>();
+		Iterator<String> iter = spec.getSpaceOptions();
+
+		while (iter.hasNext()) {
+			String name = iter.next();
+
+			if (boxString.indexOf(name) != -1) {
+				sorted.put(name, spec.getSpaceOption(name));
+			}
+		}
+		return sorted.toString();
+	}
+
+	/**
+	 * @return the cached result of formatting the given Box string under the
+	 *         given options snapshot, or null if there is none
+	 */
+	public synchronized Preview getPreview(String boxString, String options) {
+		return fPreviews.get(new Key(boxString, options));
+	}
+
+	/**
+	 * Remembers the formatted text of a Box string.
+	 */
+	public synchronized void putPreview(String boxString, String options, String formatted) {
+		fPreviews.put(new Key(boxString, options), new Preview(formatted, null));
+	}
+
+	/**
+	 * Remembers that formatting a Box string failed with the given messages.
+	 */
+	public synchronized void putError(String boxString, String options, String messages) {
+		fPreviews.put(new Key(boxString, options), new Preview(null, messages));
+	}
+
+	/**
+	 * @return the cached AST of the given preview, or null if there is none
+	 */
+	public synchronized Object getPatternAst(String preview) {
+		return fPatterns.get(preview);
+	}
+
+	public synchronized void putPatternAst(String preview, Object ast) {
+		fPatterns.put(preview, ast);
+	}
+
+	/**
+	 * Forgets everything, e.g. when the specification or its language
+	 * changes.
+	 */
+	public synchronized void clear() {
+		fPreviews.clear();
+		fPatterns.clear();
+	}
+
+	/**
+	 * The outcome of formatting a single Box string: either the formatted text
+	 * or the error messages reported by the Box tools.
+	 */
+	public static class Preview {
+		private final String fText;
+
+		private final String fErrors;
+
+		private Preview(String text, String errors) {
+			fText = text;
+			fErrors = errors;
+		}
+
+		public String getText() {
+			return fText;
+		}
+
+		public String getErrors() {
+			return fErrors;
+		}
+
+		public boolean isError() {
+			return fErrors != null;
+		}
+	}
+
+	private static class Key {
+		private final String fBox;
+
+		private final String fOptions;
+
+		public Key(String box, String options) {
+			fBox = box;
+			fOptions = options;
+		}
+
+		public int hashCode() {
+			return 31 * fBox.hashCode() + fOptions.hashCode();
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return fBox.equals(other.fBox) && fOptions.equals(other.fOptions);
+		}
+	}
+
+	private static class LRUMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int fCapacity;
+
+		public LRUMap(int capacity) {
+			super(16, 0.75f, true);
+			fCapacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > fCapacity;
+		}
+	}
+}
@@ -11,22 +11,32 @@
 
 package org.eclipse.imp.formatting.editor;
 
-import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.imp.box.builders.BoxException;
-import org.eclipse.imp.box.builders.BoxFactory;
+import org.eclipse.imp.formatting.metatooling.Activator;
+import org.eclipse.imp.formatting.metatooling.BoxToolPool;
+import org.eclipse.imp.formatting.metatooling.Metrics;
 import org.eclipse.imp.formatting.spec.BoxStringBuilder;
 import org.eclipse.imp.formatting.spec.Item;
-import org.eclipse.imp.formatting.spec.Parser;
 import org.eclipse.imp.formatting.spec.Rule;
 import org.eclipse.imp.formatting.spec.Separator;
-import org.eclipse.imp.formatting.spec.SpaceOptionBinder;
 import org.eclipse.imp.formatting.spec.Specification;
-import org.eclipse.imp.utils.SavingMessageHandler;
 import org.eclipse.jface.dialogs.IInputValidator;
 import org.eclipse.jface.dialogs.InputDialog;
 import org.eclipse.jface.window.Window;
@@ -71,6 +81,18 @@ public class RuleTable implements IEditorPart {
 
 	private final int MARGIN = 2;
 
+	/**
+	 * Milliseconds to wait after the last keystroke before a rule is
+	 * validated and its preview is recomputed.
+	 */
+	private static final long ValidationDelay = 250;
+
+	/**
+	 * Key under which the measured size of a cell is cached on its TableItem.
+	 * The column index is appended.
+	 */
+	private static final String EXTENT_KEY = "extent";
+
 	private Item fActiveItem;
 
 	private List<IPropertyListener> fListeners;
@@ -82,14 +104,72 @@ public class RuleTable implements IEditorPart {
 
 	private Font fSeparatorCellFont;
 
+	private PreviewCache fPreviewCache = new PreviewCache();
+
+	private RuleValidator fValidator;
+
+	private ValidationJob fValidationJob;
+
+	private ParserPool fParserPool;
+
+	private Job fBulkValidationJob;
+
+	private SpaceOptionIndex fOptionIndex;
+
+	/**
+	 * The latest validation result of every rule that has been validated, so
+	 * rows that are (re)materialized by the virtual table do not need to be
+	 * validated again.
+	 */
+	private Map<Rule, RuleValidator.Result> fResults = new WeakHashMap<Rule, RuleValidator.Result>();
+
+	/**
+	 * The widest cell measured so far in each column.
+	 */
+	private int[] fColumnWidths = new int[3];
+
+	private boolean fColumnResizePending = false;
+
 	public RuleTable() {
 		fListeners = new LinkedList<IPropertyListener>();
 	}
 	
 	public void setModel(Specification model) {
 		this.fModel = model;
+		fPreviewCache.clear();
+		fValidator = new RuleValidator(fParserPool, fPreviewCache);
+		fOptionIndex = new SpaceOptionIndex(model);
 		refresh();
 	}
+
+	/**
+	 * Forgets the previews and pattern ASTs made with the classes of a
+	 * language that was rebuilt, and validates all rules again, to parse their
+	 * patterns with the new classes. May be called on any thread.
+	 */
+	public void languageChanged() {
+		fPreviewCache.clear();
+
+		if (fRuleTable == null || fRuleTable.isDisposed()) {
+			return;
+		}
+
+		fRuleTable.getDisplay().asyncExec(new Runnable() {
+			public void run() {
+				if (!fRuleTable.isDisposed()) {
+					validateAll(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the parsers that rules are validated with. Must be called before
+	 * {@link #setModel(Specification)}.
+	 */
+	public void setParserPool(ParserPool parsers) {
+		fParserPool = parsers;
+	}
 	
     public void addPropertyListener(IPropertyListener l) {
         fListeners.add(l);
@@ -115,6 +195,11 @@ public class RuleTable implements IEditorPart {
 	}
 
 	public void dispose() {
+		fValidationJob.cancel();
+		fValidationJob.shutdown();
+		if (fBulkValidationJob != null) {
+			fBulkValidationJob.cancel();
+		}
 		fRuleTable.dispose();
 		fSeparatorCellFont.dispose();
 	}
@@ -167,7 +252,7 @@ public class RuleTable implements IEditorPart {
 	public void createPartControl(Composite parent) {
 		parent.setLayout(new FillLayout(SWT.HORIZONTAL));
 
-		fRuleTable = new Table(parent, SWT.FULL_SELECTION);
+		fRuleTable = new Table(parent, SWT.FULL_SELECTION | SWT.VIRTUAL);
 		fRuleTable.setLinesVisible(true);
 		fRuleTable.setHeaderVisible(true);
 
@@ -190,6 +275,9 @@ public class RuleTable implements IEditorPart {
 		createCellEditor();
 		createCellPainter();
 		createCellTooltip();
+		createLazyContent();
+
+		fValidationJob = new ValidationJob(parent.getDisplay());
 
 		fSeparatorCellFont= new Font(parent.getDisplay(), "Monospace", 14, SWT.BOLD);
 	}
@@ -300,15 +388,56 @@ public class RuleTable implements IEditorPart {
 		fRuleTable.addListener(SWT.MouseMove, tooltipListener);
 	}
 
+	/**
+	 * The table is virtual: rows are only materialized from the model when
+	 * they become visible.
+	 */
+	private void createLazyContent() {
+		fRuleTable.addListener(SWT.SetData, new Listener() {
+			public void handleEvent(Event event) {
+				TableItem item = (TableItem) event.item;
+				int index = fRuleTable.indexOf(item);
+				Item i = (Item) fModel.getRules().get(index);
+
+				if (i instanceof Rule) {
+					Rule rule = (Rule) i;
+					RuleValidator.Result result = fResults.get(rule);
+
+					if (result != null && result.getRequest().isCurrent(fModel)) {
+						item.setData(rule);
+						setCellText(item, EDIT_COLUMN, rule.getBoxString());
+						applyValidationResult(item, result);
+					} else {
+						initRuleTableItem(rule, item, false);
+					}
+				} else if (i instanceof Separator) {
+					initSeparatorTableItem((Separator) i, item);
+				}
+			}
+		});
+	}
+
+	private void setCellText(TableItem item, int column, String text) {
+		item.setText(column, text == null ? "\n" : text);
+		item.setData(EXTENT_KEY + column, null);
+	}
+
 	private void createCellPainter() {
 		fRuleTable.addListener(SWT.MeasureItem, new Listener() {
 			public void handleEvent(Event event) {
 				TableItem item = (TableItem) event.item;
-				String text = item.getText(event.index);
-				event.gc.setFont(item.getFont());
-				Point size = event.gc.textExtent(text, SWT.DRAW_DELIMITER);
+				String key = EXTENT_KEY + event.index;
+				Point size = (Point) item.getData(key);
+
+				if (size == null) {
+					String text = item.getText(event.index);
+					event.gc.setFont(item.getFont());
+					size = event.gc.textExtent(text, SWT.DRAW_DELIMITER);
+					item.setData(key, size);
+				}
 				event.width = size.x + 2 * MARGIN;
 				event.height = size.y + MARGIN;
+				growColumn(event.index, event.width);
 			}
 		});
 		fRuleTable.addListener(SWT.EraseItem, new Listener() {
@@ -326,6 +455,38 @@ public class RuleTable implements IEditorPart {
 		});
 	}
 
+	/**
+	 * Widens a column to fit a cell that has just been measured. Columns are
+	 * not packed over all rows, since that would materialize the whole table.
+	 */
+	private void growColumn(int index, int width) {
+		if (width <= fColumnWidths[index]) {
+			return;
+		}
+		fColumnWidths[index] = width;
+
+		if (!fColumnResizePending) {
+			fColumnResizePending = true;
+			fRuleTable.getDisplay().asyncExec(new Runnable() {
+				public void run() {
+					fColumnResizePending = false;
+
+					if (fRuleTable.isDisposed()) {
+						return;
+					}
+
+					for (int c = 0; c < fColumnWidths.length; c++) {
+						TableColumn column = fRuleTable.getColumn(c);
+
+						if (column.getWidth() < fColumnWidths[c]) {
+							column.setWidth(fColumnWidths[c]);
+						}
+					}
+				}
+			});
+		}
+	}
+
 	public void addSeparator() {
 		Separator s = new Separator();
 
@@ -351,9 +512,9 @@ public class RuleTable implements IEditorPart {
 	}
 
 	private void updateSeparatorTableItem(TableItem item, String label) {
-		item.setText(EDIT_COLUMN, label);
-		item.setText(PREVIEW_COLUMN, "");
-		item.setText(STATUS_COLUMN, "---");
+		setCellText(item, EDIT_COLUMN, label);
+		setCellText(item, PREVIEW_COLUMN, "");
+		setCellText(item, STATUS_COLUMN, "---");
 		item.setFont(fSeparatorCellFont);
 	}
 
@@ -362,11 +523,14 @@ public class RuleTable implements IEditorPart {
 			Text text = (Text) fTableEditor.getEditor();
 			String b = text.getText();
 			TableItem i = fTableEditor.getItem();
-			i.setText(EDIT_COLUMN, b);
+			setCellText(i, EDIT_COLUMN, b);
 			Rule rule = (Rule) fTableEditor.getItem().getData();
 
 			rule.setBoxString(b);
-			updateRuleTableItem(i, rule, true);
+			fOptionIndex.update(rule);
+			fValidationJob.enqueue(RuleValidator.prepare(fModel, rule, true));
+			fValidationJob.cancel();
+			fValidationJob.schedule(ValidationDelay);
 			setDirty(true);
 		}
 	}
@@ -376,7 +540,7 @@ public class RuleTable implements IEditorPart {
 			Text text = (Text) fTableEditor.getEditor();
 			String l = text.getText();
 			TableItem i = fTableEditor.getItem();
-			i.setText(EDIT_COLUMN, l);
+			setCellText(i, EDIT_COLUMN, l);
 			Separator sep = (Separator) fTableEditor.getItem().getData();
 
 			sep.setLabel(l);
@@ -385,26 +549,221 @@ public class RuleTable implements IEditorPart {
 		}
 	}
 	
-	public void refresh() {
-		fRuleTable.removeAll();
+	/**
+	 * Validates edited rules off the UI thread. Requests for the same rule are
+	 * coalesced, so only the latest text of a rule is ever validated, and
+	 * results are streamed back to the table as they complete. Results for
+	 * rules that were changed again in the meantime are discarded.
+	 */
+	private class ValidationJob extends Job {
+		private final Display fDisplay;
+
+		private final Map<Rule, RuleValidator.Request> fPending = new LinkedHashMap<Rule, RuleValidator.Request>();
+
+		private ExecutorService fFormatPool;
+
+		public ValidationJob(Display display) {
+			super("Validating formatting rules");
+			fDisplay = display;
+			setSystem(true);
+			setPriority(Job.SHORT);
+		}
 
-		Iterator<Item> iter = fModel.ruleIterator();
+		public synchronized void enqueue(RuleValidator.Request request) {
+			fPending.put(request.getRule(), request);
+		}
 
-		while (iter.hasNext()) {
-			final Item i = iter.next();
-			TableItem item = new TableItem(fRuleTable, SWT.NONE);
+		private synchronized List<RuleValidator.Request> drain() {
+			List<RuleValidator.Request> batch = new ArrayList<RuleValidator.Request>(fPending.values());
+			fPending.clear();
+			return batch;
+		}
+
+		private synchronized void requeue(List<RuleValidator.Request> requests) {
+			for (RuleValidator.Request request : requests) {
+				// a newer request for the same rule wins
+				if (!fPending.containsKey(request.getRule())) {
+					fPending.put(request.getRule(), request);
+				}
+			}
+		}
+
+		/**
+		 * Starts formatting all Box strings of a batch in parallel. Parsing
+		 * still happens one rule at a time in {@link #run(IProgressMonitor)}.
+		 */
+		private List<Future<?>> prefetch(List<RuleValidator.Request> batch) {
+			List<Future<?>> futures = new ArrayList<Future<?>>(batch.size());
+
+			if (batch.size() > 1) {
+				if (fFormatPool == null) {
+					fFormatPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Formatting rule previews");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+
+				for (final RuleValidator.Request request : batch) {
+					futures.add(fFormatPool.submit(new Runnable() {
+						public void run() {
+							fValidator.prefetch(request);
+						}
+					}));
+				}
+			}
+			return futures;
+		}
+
+		public void shutdown() {
+			if (fFormatPool != null) {
+				fFormatPool.shutdownNow();
+			}
+		}
+
+		protected IStatus run(IProgressMonitor monitor) {
+			List<RuleValidator.Request> batch = drain();
+			List<Future<?>> prefetched = prefetch(batch);
+
+			for (int i = 0; i < batch.size(); i++) {
+				if (monitor.isCanceled() || fDisplay.isDisposed()) {
+					for (int j = i; j < prefetched.size(); j++) {
+						prefetched.get(j).cancel(false);
+					}
+					requeue(batch.subList(i, batch.size()));
+					return Status.CANCEL_STATUS;
+				}
+
+				if (i < prefetched.size()) {
+					try {
+						prefetched.get(i).get();
+					} catch (InterruptedException e) {
+						requeue(batch.subList(i, batch.size()));
+						return Status.CANCEL_STATUS;
+					} catch (ExecutionException e) {
+						// validate() below will format again and report the problem
+					}
+				}
+
+				final RuleValidator.Result result = fValidator.validate(batch.get(i));
+
+				fDisplay.asyncExec(new Runnable() {
+					public void run() {
+						applyAsyncResult(result);
+					}
+				});
+			}
+			return Status.OK_STATUS;
+		}
+	}
 
-			if (i instanceof Rule) {
-				initRuleTableItem((Rule) i, item, false);
-			} else if (i instanceof Separator) {
-				initSeparatorTableItem((Separator) i, item);
+	/**
+	 * Re-validates exactly the rules that refer to the given space option, in
+	 * the background.
+	 */
+	public void spaceOptionChanged(String name) {
+		Set<Rule> rules = fOptionIndex.getRulesReferencing(name);
+
+		if (rules.size() == 0) {
+			return;
+		}
+
+		for (Rule rule : rules) {
+			fValidationJob.enqueue(RuleValidator.prepare(fModel, rule, true));
+		}
+		fValidationJob.cancel();
+		fValidationJob.schedule();
+	}
+
+	/**
+	 * Validates all rules in the background, on a worker per processor. The
+	 * Status column is updated as the results come in, and the job shows
+	 * progress and can be canceled. A validation that is still running is
+	 * canceled first.
+	 * 
+	 * @param recompute
+	 *            whether to format the Box strings again, or to trust the
+	 *            stored previews and only parse them
+	 */
+	public void validateAll(boolean recompute) {
+		if (fBulkValidationJob != null) {
+			fBulkValidationJob.cancel();
+		}
+
+		// requests are snapshots of the model, so they are made here
+		final List<RuleValidator.Request> requests = new ArrayList<RuleValidator.Request>();
+
+		for (Object item : fModel.getRules()) {
+			if (item instanceof Rule) {
+				requests.add(RuleValidator.prepare(fModel, (Rule) item, recompute));
 			}
 		}
 
-		for (TableColumn c : fRuleTable.getColumns()) {
-			c.pack();
+		final Display display = fRuleTable.getDisplay();
+		final BulkValidator validator = new BulkValidator(fValidator, Runtime.getRuntime().availableProcessors());
+
+		fBulkValidationJob = new Job("Validating all formatting rules") {
+			protected IStatus run(IProgressMonitor monitor) {
+				return validator.validate(requests, new BulkValidator.Listener() {
+					public void validated(final RuleValidator.Result result) {
+						if (!display.isDisposed()) {
+							display.asyncExec(new Runnable() {
+								public void run() {
+									applyAsyncResult(result);
+								}
+							});
+						}
+					}
+				}, monitor);
+			}
+		};
+		fBulkValidationJob.setUser(recompute);
+		fBulkValidationJob.setPriority(Job.LONG);
+		fBulkValidationJob.schedule();
+	}
+
+	private void applyAsyncResult(RuleValidator.Result result) {
+		if (fRuleTable.isDisposed() || !result.getRequest().isCurrent(fModel)) {
+			return; // stale
+		}
+
+		Rule rule = result.getRule();
+		int i = fModel.getRules().indexOf(rule);
+
+		if (i < 0 || i >= fRuleTable.getItemCount()) {
+			return;
+		}
+
+		TableItem edited = fTableEditor.getItem();
+
+		if (edited != null && !edited.isDisposed() && edited.getData() == rule) {
+			applyValidationResult(edited, result);
+		} else {
+			// update the model now, but leave the row to the virtual table;
+			// it is repainted from fResults as soon as it is visible
+			if (result.getPatternString() != null) {
+				rule.setPatternString(result.getPatternString());
+			}
+			if (result.getPatternAst() != null) {
+				rule.setPatternAst(result.getPatternAst());
+			}
+			fResults.put(rule, result);
+			fRuleTable.clear(i);
 		}
 	}
+
+	/**
+	 * Rebuilds the table from the model. Rows are materialized and validated
+	 * lazily, see {@link #createLazyContent()}.
+	 */
+	public void refresh() {
+		disposeTableEditor();
+		fResults.clear();
+		fRuleTable.removeAll();
+		fRuleTable.setItemCount(fModel.getRules().size());
+	}
 	
 	public void setDirty(boolean b) {
 		if (fDirty != b) {
@@ -419,79 +778,32 @@ public class RuleTable implements IEditorPart {
 	}
 
 	private void updateRuleTableItem(TableItem item, Rule rule, boolean recompute) {
-		String boxString = rule.getBoxString();
-		item.setText(EDIT_COLUMN, boxString == null ? "\n" : boxString);
-
-		if (boxString != null) {
-			Parser parser = fModel.getParser();
-
-			parser.getMessageHandler().clearMessages();
-			if (parser.parseBox(boxString) != null) {
-				String formatted;
-				if (recompute) {
-					try {
-						formatted = getFormattedBox(boxString);
-					} catch (BoxException e) {
-						setItemAttribs(item, e.getMessage(), e.getBoxString());
-						return;
-					}
-				 
-				 if (formatted != null && formatted.length() > 0) {
-				   rule.setPatternString(formatted);
-				 }
-				} else {
-				  formatted = rule.getPatternString();
-				  if (formatted == null) {
-					  formatted = "";
-				  }
-				}
-				
-				item.setText(PREVIEW_COLUMN, formatted);
-				Object ast = parser.parseObject(formatted);
+		setCellText(item, EDIT_COLUMN, rule.getBoxString());
 
-				if (ast == null) {
-	                SavingMessageHandler smh= (SavingMessageHandler) parser.getMessageHandler();
+		applyValidationResult(item, fValidator.validate(RuleValidator.prepare(fModel, rule, recompute)));
+	}
 
-	                if (smh.getMessages().size() == 1 && smh.getConcatenatedMessages().contains("Unable to parse formatted text:")) {
-                        setItemAttribs(item, "Unable to parse formatted text: no parser", "");
-	                } else {
-                        setItemAttribs(item, "Syntax error in formatted output", smh.getConcatenatedMessages());
-	                }
-				} else {
-					rule.setPatternAst(ast);
-					setItemAttribs(item, "Ok", ast.getClass().getName());
-				}
-			} else {
-			    SavingMessageHandler smh= (SavingMessageHandler) parser.getMessageHandler();
+	private void applyValidationResult(TableItem item, RuleValidator.Result result) {
+		Rule rule = result.getRule();
 
-			    setItemAttribs(item, "Syntax error in box rule", smh.getConcatenatedMessages());
-			}
-		} else {
-			setItemAttribs(item, "Empty box rule", "");
+		if (result.getPatternString() != null) {
+			rule.setPatternString(result.getPatternString());
+		}
+		if (result.getPreview() != null) {
+			setCellText(item, PREVIEW_COLUMN, result.getPreview());
 		}
+		if (result.getPatternAst() != null) {
+			rule.setPatternAst(result.getPatternAst());
+		}
+		setItemAttribs(item, result.getStatus(), result.getTooltip());
+		fResults.put(rule, result);
 	}
 
 	private void setItemAttribs(TableItem item, String text, String tooltip) {
-		item.setText(STATUS_COLUMN, text);
+		setCellText(item, STATUS_COLUMN, text);
 		item.setData("tooltip", tooltip);
 	}
 
-	private String getFormattedBox(String boxString) throws BoxException {
-		if (boxString != null && boxString.length() > 0) {
-			SpaceOptionBinder binder = new SpaceOptionBinder(fModel);
-			String boundString = binder.bind(boxString);
-			SavingMessageHandler smh= new SavingMessageHandler();
-			String result= BoxFactory.box2Text(boundString, smh);
-
-			if (smh.getMessages().size() > 0) {
-			    throw new BoxException(smh.getConcatenatedMessages(), boxString, null);
-			}
-			return result;
-		} else {
-			return "";
-		}
-	}
-	
 	public void move(int diff) {
 		if (fActiveItem != null && fActiveItem instanceof Rule) {
 			Rule r = (Rule) fActiveItem;
@@ -521,6 +833,9 @@ public class RuleTable implements IEditorPart {
 			fRuleTable.deselectAll();
 			fRuleTable.remove(i);
 			fModel.removeRule(i);
+			if (fActiveItem instanceof Rule) {
+				fOptionIndex.remove((Rule) fActiveItem);
+			}
 			setDirty(true);
 		}
 	}
@@ -554,16 +869,15 @@ public class RuleTable implements IEditorPart {
 			String box = rule.getBoxString();
 			String formatted;
 			try {
-				formatted = BoxFactory.formatBox(box);
+				formatted = BoxToolPool.getDefault().formatBox(box);
 				if (formatted != null) {
 					rule.setBoxString(formatted);
+					fOptionIndex.update(rule);
 					int i = fModel.getRules().indexOf(rule);
-					fRuleTable.getItem(i).setText(EDIT_COLUMN, formatted);
+					setCellText(fRuleTable.getItem(i), EDIT_COLUMN, formatted);
 					setDirty(true);
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (InterruptedException e) {
+			} catch (BoxException e) {
 				e.printStackTrace();
 			}
 		}
@@ -574,8 +888,11 @@ public class RuleTable implements IEditorPart {
 
 		IInputValidator v = new IInputValidator() {
 			public String isValid(String newText) {
-				Parser parser = fModel.getParser();
-				if (parser.parseObject(newText) != null) {
+				long start = Activator.getMetrics().start();
+				Object ast = fParserPool.parseObject(newText).getAst();
+				Activator.getMetrics().stop(Metrics.PREVIEW_PARSE, start);
+
+				if (ast != null) {
 					return null;
 				} else {
 					return "Not a valid string";
@@ -595,6 +912,7 @@ public class RuleTable implements IEditorPart {
 				Rule rule = (Rule) fActiveItem;
 				String box = BoxStringBuilder.exampleToBox(result);
 				rule.setBoxString(box);
+				fOptionIndex.update(rule);
 				int i = fModel.getRules().indexOf(fActiveItem);
 				TableItem item = fRuleTable.getItem(i);
 				updateRuleTableItem(item, rule, true);
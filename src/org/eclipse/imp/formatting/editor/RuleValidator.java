@@ -0,0 +1,333 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import org.eclipse.imp.box.builders.BoxException;
+import org.eclipse.imp.formatting.metatooling.Activator;
+import org.eclipse.imp.formatting.metatooling.BoxRenderer;
+import org.eclipse.imp.formatting.metatooling.BoxSyntaxException;
+import org.eclipse.imp.formatting.metatooling.Metrics;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.SpaceOptionBinder;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.utils.SavingMessageHandler;
+
+/**
+ * Checks a single formatting rule: the Box expression is parsed, formatted
+ * to obtain the preview, and the preview is parsed with the object language
+ * parser to obtain the pattern.
+ *
+ * Validation is split in two steps so that the expensive part can run off
+ * the UI thread. {@link #prepare(Specification, Rule, boolean)} captures
+ * everything that is needed from the (not thread-safe) model on the calling
+ * thread, and {@link #validate(Request)} can then run on any thread, also on
+ * several at once: every validation parses with a parser of its own from the
+ * {@link ParserPool}. The {@link Result} must be applied to the model and the
+ * table on the UI thread again.
+ */
+public class RuleValidator {
+	private final ParserPool fParsers;
+
+	private final PreviewCache fCache;
+
+	public RuleValidator(ParserPool parsers, PreviewCache cache) {
+		fParsers = parsers;
+		fCache = cache;
+	}
+
+	/**
+	 * Captures the state of a rule for validation. Must be called on the
+	 * thread that owns the model.
+	 *
+	 * @param recompute
+	 *            if true the preview is recomputed from the Box string, if
+	 *            false the preview stored in the rule is trusted
+	 */
+	public static Request prepare(Specification spec, Rule rule, boolean recompute) {
+		String boxString = rule.getBoxString();
+		String boundString = null;
+		String options = null;
+
+		if (recompute && boxString != null && boxString.length() > 0) {
+			long start = Activator.getMetrics().start();
+			boundString = new SpaceOptionBinder(spec).bind(boxString);
+			Activator.getMetrics().stop(Metrics.OPTION_BIND, start);
+			options = PreviewCache.snapshotOptions(spec, boxString);
+		}
+		return new Request(rule, boxString, boundString, options, recompute, rule.getPatternString());
+	}
+
+	/**
+	 * Validates a rule. May be called on any thread.
+	 */
+	public Result validate(Request request) {
+		String boxString = request.getBoxString();
+
+		if (boxString == null) {
+			return new Result(request, "Empty box rule", "", null, null, null);
+		}
+
+		// a parser of our own, so its messages are those of this rule only
+		Parser parser = fParsers.acquire();
+
+		try {
+			long start = Activator.getMetrics().start();
+			Object box = parser.parseBox(boxString);
+			Activator.getMetrics().stop(Metrics.BOX_PARSE, start);
+
+			if (box != null) {
+				String formatted;
+				String patternString = null;
+
+				if (request.isRecompute()) {
+					try {
+						formatted = getFormattedBox(request);
+					} catch (BoxException e) {
+						return new Result(request, e.getMessage(), e.getBoxString(), null, null, null);
+					}
+
+					if (formatted != null && formatted.length() > 0) {
+						patternString = formatted;
+					}
+				} else {
+					formatted = request.getStoredPreview();
+					if (formatted == null) {
+						formatted = "";
+					}
+				}
+
+				Object ast = fCache.getPatternAst(formatted);
+
+				if (ast == null) {
+					start = Activator.getMetrics().start();
+					ast = parser.parseObject(formatted);
+					Activator.getMetrics().stop(Metrics.PREVIEW_PARSE, start);
+
+					if (ast != null) {
+						fCache.putPatternAst(formatted, ast);
+					}
+				}
+
+				if (ast == null) {
+					SavingMessageHandler smh= (SavingMessageHandler) parser.getMessageHandler();
+
+					if (smh.getMessages().size() == 1 && smh.getConcatenatedMessages().contains("Unable to parse formatted text:")) {
+						return new Result(request, "Unable to parse formatted text: no parser", "", formatted, patternString, null);
+					} else {
+						return new Result(request, "Syntax error in formatted output", smh.getConcatenatedMessages(), formatted, patternString, null);
+					}
+				} else {
+					return new Result(request, "Ok", ast.getClass().getName(), formatted, patternString, ast);
+				}
+			} else {
+				SavingMessageHandler smh= (SavingMessageHandler) parser.getMessageHandler();
+
+				return new Result(request, "Syntax error in box rule", smh.getConcatenatedMessages(), null, null, null);
+			}
+		} finally {
+			fParsers.release(parser);
+		}
+	}
+
+	/**
+	 * Formats the Box string of a request into the preview cache, without
+	 * parsing. This can run concurrently for many requests, which is what
+	 * makes re-validating a batch of rules fast: formatting is the expensive
+	 * step.
+	 */
+	public void prefetch(Request request) {
+		if (request.isRecompute()) {
+			try {
+				getFormattedBox(request);
+			} catch (BoxException e) {
+				// reported by validate()
+			}
+		}
+	}
+
+	private String getFormattedBox(Request request) throws BoxException {
+		String boxString = request.getBoxString();
+
+		if (boxString != null && boxString.length() > 0) {
+			String options = request.getOptions();
+			PreviewCache.Preview cached = fCache.getPreview(boxString, options);
+
+			if (cached != null) {
+				if (cached.isError()) {
+					throw new BoxException(cached.getErrors(), boxString, null);
+				}
+				return cached.getText();
+			}
+
+			String result;
+
+			try {
+				result = BoxRenderer.box2Text(request.getBoundString());
+			} catch (BoxException e) {
+				// only errors in the expression itself fail again; missing or
+				// interrupted tools may work the next time
+				if (e instanceof BoxSyntaxException) {
+					fCache.putError(boxString, options, e.getMessage());
+				}
+				throw new BoxException(e.getMessage(), boxString, null);
+			}
+			fCache.putPreview(boxString, options, result);
+			return result;
+		} else {
+			return "";
+		}
+	}
+
+	/**
+	 * A snapshot of a rule and of the space options it refers to at the time
+	 * validation was requested.
+	 */
+	public static class Request {
+		private final Rule fRule;
+
+		private final String fBoxString;
+
+		private final String fBoundString;
+
+		private final String fOptions;
+
+		private final boolean fRecompute;
+
+		private final String fStoredPreview;
+
+		private Request(Rule rule, String boxString, String boundString, String options, boolean recompute, String storedPreview) {
+			fRule = rule;
+			fBoxString = boxString;
+			fBoundString = boundString;
+			fOptions = options;
+			fRecompute = recompute;
+			fStoredPreview = storedPreview;
+		}
+
+		public Rule getRule() {
+			return fRule;
+		}
+
+		public String getBoxString() {
+			return fBoxString;
+		}
+
+		public String getBoundString() {
+			return fBoundString;
+		}
+
+		public String getOptions() {
+			return fOptions;
+		}
+
+		public boolean isRecompute() {
+			return fRecompute;
+		}
+
+		public String getStoredPreview() {
+			return fStoredPreview;
+		}
+
+		/**
+		 * @return true iff neither the rule nor the space options it was
+		 *         formatted with have changed since this request was made.
+		 *         Must be called on the thread that owns the model.
+		 */
+		public boolean isCurrent(Specification spec) {
+			String current = fRule.getBoxString();
+
+			if (current == null ? fBoxString != null : !current.equals(fBoxString)) {
+				return false;
+			}
+			return fOptions == null || fOptions.equals(PreviewCache.snapshotOptions(spec, fBoxString));
+		}
+	}
+
+	/**
+	 * The outcome of validating a rule.
+	 */
+	public static class Result {
+		private final Request fRequest;
+
+		private final String fStatus;
+
+		private final String fTooltip;
+
+		private final String fPreview;
+
+		private final String fPatternString;
+
+		private final Object fPatternAst;
+
+		private Result(Request request, String status, String tooltip, String preview, String patternString, Object patternAst) {
+			fRequest = request;
+			fStatus = status;
+			fTooltip = tooltip;
+			fPreview = preview;
+			fPatternString = patternString;
+			fPatternAst = patternAst;
+		}
+
+		/**
+		 * @return the result for a rule whose validation failed with an
+		 *         unexpected exception
+		 */
+		public static Result failed(Request request, Throwable cause) {
+			String message = cause.getMessage();
+
+			return new Result(request, "Validation failed", message != null ? message : cause.toString(), null, null, null);
+		}
+
+		public Request getRequest() {
+			return fRequest;
+		}
+
+		public Rule getRule() {
+			return fRequest.getRule();
+		}
+
+		/**
+		 * @return the text for the status column
+		 */
+		public String getStatus() {
+			return fStatus;
+		}
+
+		public String getTooltip() {
+			return fTooltip;
+		}
+
+		/**
+		 * @return the text for the preview column, or null if it should be
+		 *         left alone
+		 */
+		public String getPreview() {
+			return fPreview;
+		}
+
+		/**
+		 * @return a newly formatted pattern string for the rule, or null if
+		 *         the rule's pattern string should be left alone
+		 */
+		public String getPatternString() {
+			return fPatternString;
+		}
+
+		/**
+		 * @return the parsed pattern, or null if the preview did not parse
+		 */
+		public Object getPatternAst() {
+			return fPatternAst;
+		}
+	}
+}
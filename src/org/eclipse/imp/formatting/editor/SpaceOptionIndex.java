@@ -0,0 +1,133 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+
+/**
+ * Indexes the rules of a specification on the space options they refer to,
+ * such that changing an option only requires the rules that the
+ * SpaceOptionBinder would substitute it into to be formatted again.
+ *
+ * Every <code>$name</code> occurrence in a Box string is a potential
+ * substitution site, where a name is made of letters, digits and
+ * underscores like the names the SpaceOptionBinder substitutes. Lookups are
+ * on prefixes, so the index never misses a rule that the binder would touch;
+ * at worst it reports a few rules too many.
+ */
+public class SpaceOptionIndex {
+	private static final Pattern OPTION_REFERENCE = Pattern.compile("\\$[a-zA-Z0-9_]+");
+
+	/**
+	 * From option references to the rules containing them.
+	 */
+	private final SortedMap<String, Set<Rule>> fRulesByOption = new TreeMap<String, Set<Rule>>();
+
+	/**
+	 * From rules to the option references they contain.
+	 */
+	private final Map<Rule, Set<String>> fOptionsByRule = new HashMap<Rule, Set<String>>();
+
+	public SpaceOptionIndex(Specification spec) {
+		Iterator<Item> iter = spec.ruleIterator();
+
+		while (iter.hasNext()) {
+			Item i = iter.next();
+
+			if (i instanceof Rule) {
+				update((Rule) i);
+			}
+		}
+	}
+
+	/**
+	 * Re-indexes a rule after its Box string has changed, or indexes a new
+	 * rule.
+	 */
+	public void update(Rule rule) {
+		remove(rule);
+
+		String boxString = rule.getBoxString();
+
+		if (boxString == null) {
+			return;
+		}
+
+		Set<String> options = new HashSet<String>();
+		Matcher m = OPTION_REFERENCE.matcher(boxString);
+
+		while (m.find()) {
+			options.add(m.group());
+		}
+
+		for (String option : options) {
+			Set<Rule> rules = fRulesByOption.get(option);
+
+			if (rules == null) {
+				rules = new HashSet<Rule>();
+				fRulesByOption.put(option, rules);
+			}
+			rules.add(rule);
+		}
+		fOptionsByRule.put(rule, options);
+	}
+
+	/**
+	 * Forgets a rule that was deleted from the specification.
+	 */
+	public void remove(Rule rule) {
+		Set<String> options = fOptionsByRule.remove(rule);
+
+		if (options == null) {
+			return;
+		}
+
+		for (String option : options) {
+			Set<Rule> rules = fRulesByOption.get(option);
+			rules.remove(rule);
+
+			if (rules.size() == 0) {
+				fRulesByOption.remove(option);
+			}
+		}
+	}
+
+	/**
+	 * @return the rules whose Box string may contain a substitution site for
+	 *         the given option
+	 */
+	public Set<Rule> getRulesReferencing(String option) {
+		Set<Rule> result = new LinkedHashSet<Rule>();
+
+		if (option == null || option.length() == 0) {
+			return result;
+		}
+
+		for (Set<Rule> rules : fRulesByOption.subMap(option, option + Character.MAX_VALUE).values()) {
+			result.addAll(rules);
+		}
+		return result;
+	}
+}
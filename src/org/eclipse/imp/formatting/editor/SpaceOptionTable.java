@@ -53,6 +53,8 @@ public class SpaceOptionTable implements IEditorPart {
 	private TableItem activeOption;
 	
 	private List<IPropertyListener> listeners;
+
+	private List<ISpaceOptionListener> optionListeners;
 	
 	private Specification model;
 	
@@ -64,6 +66,7 @@ public class SpaceOptionTable implements IEditorPart {
 	public SpaceOptionTable(Specification model) {
 		this.model = model;
 		listeners = new LinkedList<IPropertyListener>();
+		optionListeners = new LinkedList<ISpaceOptionListener>();
 	}
 	
 	public void setModel(Specification model) {
@@ -80,6 +83,20 @@ public class SpaceOptionTable implements IEditorPart {
     		l.propertyChanged(this, change);
     	}
     }
+
+    public void addSpaceOptionListener(ISpaceOptionListener l) {
+        optionListeners.add(l);
+    }
+
+    public void removeSpaceOptionListener(ISpaceOptionListener l) {
+        optionListeners.remove(l);
+    }
+
+    private void fireSpaceOptionChanged(String name) {
+    	for (ISpaceOptionListener l : optionListeners) {
+    		l.spaceOptionChanged(name);
+    	}
+    }
     
     public IEditorInput getEditorInput() {
 		return input;
@@ -184,6 +201,7 @@ public class SpaceOptionTable implements IEditorPart {
 		        TableItem tableItem = (TableItem) element;
 		        EditableTableItem data = (EditableTableItem) tableItem
 		            .getData();
+		        String oldName = data.getName();
 		        if (NAME_PROPERTY.equals(property)) {
 					data.setName(value.toString());
 				} else {
@@ -192,6 +210,11 @@ public class SpaceOptionTable implements IEditorPart {
 		        
 		        setDirty(true);
 
+		        fireSpaceOptionChanged(oldName);
+		        if (!oldName.equals(data.getName())) {
+		        	fireSpaceOptionChanged(data.getName());
+		        }
+
 				tableViewer.refresh(data);
 			}
 		    });
@@ -292,14 +315,17 @@ public class SpaceOptionTable implements IEditorPart {
 		EditableTableItem item = new EditableTableItem(model, "$exampleKey", 1);
 		tableViewer.add(item);
 		setDirty(true);
+		fireSpaceOptionChanged("$exampleKey");
 	}
 	
 	public void deleteOption() {
 		if (activeOption != null) {
-			model.removeSpaceOption(activeOption.getText(NAME_COLUMN));
+			String name = activeOption.getText(NAME_COLUMN);
+			model.removeSpaceOption(name);
 			optionTable.remove(optionTable.indexOf(activeOption));
 			activeOption = null;
 			setDirty(true);
+			fireSpaceOptionChanged(name);
 		}
 	}
 
@@ -0,0 +1,105 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+
+/**
+ * A copy of the language, rules and space options of a specification, taken
+ * on the thread that owns the model, so a background job can format with
+ * them while the rule table keeps changing the model.
+ */
+public class SpecificationSnapshot {
+	private final String fLanguage;
+
+	private final List<String[]> fRules = new ArrayList<String[]>();
+
+	private final List<Object> fPatternAsts = new ArrayList<Object>();
+
+	private final Map<String, Integer> fOptions = new LinkedHashMap<String, Integer>();
+
+	private final String fKey;
+
+	/**
+	 * Must be called on the thread that owns the specification.
+	 */
+	public SpecificationSnapshot(Specification spec) {
+		StringBuilder key = new StringBuilder(PreviewCache.snapshotOptions(spec));
+		Iterator<Item> iter = spec.ruleIterator();
+
+		fLanguage = spec.getLanguage();
+
+		while (iter.hasNext()) {
+			Item item = iter.next();
+
+			if (item instanceof Rule) {
+				Rule rule = (Rule) item;
+
+				fRules.add(new String[] { rule.getBoxString(), rule.getPatternString() });
+				fPatternAsts.add(rule.getPatternAst());
+				key.append('\0').append(rule.getPatternString()).append('\0').append(rule.getBoxString());
+			}
+		}
+
+		Iterator<String> names = spec.getSpaceOptions();
+
+		while (names.hasNext()) {
+			String name = names.next();
+			fOptions.put(name, spec.getSpaceOption(name));
+		}
+
+		fKey = key.toString();
+	}
+
+	public String getLanguage() {
+		return fLanguage;
+	}
+
+	/**
+	 * @return a string that is equal for snapshots with equal rules and
+	 *         options
+	 */
+	public String getKey() {
+		return fKey;
+	}
+
+	/**
+	 * Builds a specification with copies of the rules, that parses patterns
+	 * with the given parser. May be called on any thread.
+	 */
+	public Specification toSpecification(Parser parser) {
+		Specification spec = new Specification(fLanguage, parser);
+
+		for (Map.Entry<String, Integer> option : fOptions.entrySet()) {
+			spec.setSpaceOption(option.getKey(), option.getValue());
+		}
+
+		for (int i = 0; i < fRules.size(); i++) {
+			Rule rule = new Rule();
+
+			rule.setBoxString(fRules.get(i)[0]);
+			rule.setPatternString(fRules.get(i)[1]);
+			rule.setPatternAst(fPatternAsts.get(i));
+			spec.addRule(rule);
+		}
+		return spec;
+	}
+}
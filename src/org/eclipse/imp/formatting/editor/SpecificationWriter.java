@@ -0,0 +1,137 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * Saves the text of a specification to its file in UTF-8, the encoding that
+ * the XML declaration of a specification names.
+ *
+ * The text is encoded a buffer at a time while the workspace reads it, so no
+ * full byte copy of it is ever made, and the previous contents are kept in
+ * the local history. Text equal to what the writer saved last is not written
+ * at all, unless the file was changed since.
+ */
+public class SpecificationWriter {
+	private static final String CHARSET = "UTF-8";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The text saved last, and the time stamp of the file after that save, to
+	 * recognize a save without changes.
+	 */
+	private String fLastSaved;
+
+	private long fLastStamp;
+
+	/**
+	 * @throws CoreException
+	 *             if the file is out of sync with the file system, or can
+	 *             not be written
+	 */
+	public void save(IFile file, String text, IProgressMonitor monitor) throws CoreException {
+		if (text.equals(fLastSaved) && file.exists() && file.getLocalTimeStamp() == fLastStamp) {
+			return;
+		}
+
+		InputStream in = new EncodingInputStream(text);
+
+		if (file.exists()) {
+			file.setContents(in, IResource.KEEP_HISTORY, monitor);
+		} else {
+			file.create(in, false, monitor);
+		}
+		file.setCharset(CHARSET, monitor);
+
+		fLastSaved = text;
+		fLastStamp = file.getLocalTimeStamp();
+	}
+
+	/**
+	 * Encodes a string in UTF-8 while it is read.
+	 */
+	private static class EncodingInputStream extends InputStream {
+		private final CharBuffer fChars;
+
+		private final CharsetEncoder fEncoder;
+
+		private final ByteBuffer fBytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+		private boolean fFlushed = false;
+
+		public EncodingInputStream(String text) {
+			fChars = CharBuffer.wrap(text);
+			fEncoder = Charset.forName(CHARSET).newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			fBytes.flip();
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fBytes.hasRemaining() && !fill()) {
+				return -1;
+			}
+
+			int n = Math.min(len, fBytes.remaining());
+			fBytes.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * @return false at the end of the text
+		 */
+		private boolean fill() throws IOException {
+			fBytes.clear();
+
+			while (fBytes.position() == 0 && !fFlushed) {
+				CoderResult result;
+
+				if (fChars.hasRemaining()) {
+					result = fEncoder.encode(fChars, fBytes, false);
+				} else {
+					result = fEncoder.encode(fChars, fBytes, true);
+					if (!result.isOverflow()) {
+						result = fEncoder.flush(fBytes);
+						fFlushed = !result.isOverflow();
+					}
+				}
+				if (result.isError()) {
+					result.throwException();
+				}
+			}
+
+			fBytes.flip();
+			return fBytes.hasRemaining();
+		}
+	}
+}
@@ -13,6 +13,9 @@ public class Activator extends AbstractUIPlugin {
 
 	// The shared instance
 	private static Activator plugin;
+
+	// The metrics, also available when the plug-in is not started
+	private static final Metrics metrics = new Metrics();
 	
 	/**
 	 * The constructor
@@ -27,6 +30,7 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		BoxToolPool.startDefault();
 	}
 
 	/*
@@ -34,6 +38,7 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		BoxToolPool.shutdownDefault();
 		plugin = null;
 		super.stop(context);
 	}
@@ -47,4 +52,13 @@ public class Activator extends AbstractUIPlugin {
 		return plugin;
 	}
 
+	/**
+	 * Returns the timers and counters of the formatting stages
+	 *
+	 * @return the metrics
+	 */
+	public static Metrics getMetrics() {
+		return metrics;
+	}
+
 }
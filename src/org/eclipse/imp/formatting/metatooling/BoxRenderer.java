@@ -0,0 +1,49 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import org.eclipse.imp.box.builders.BoxException;
+import org.eclipse.imp.box.builders.BoxFactory;
+
+/**
+ * Renders Box expressions to text with the external sglr/pandora tools,
+ * through the {@link BoxToolPool}, which reuses and batches the tool runs
+ * instead of starting two processes for every call as
+ * {@link BoxFactory#box2Text} does.
+ *
+ * This class has no state and may be used from any thread.
+ */
+public class BoxRenderer {
+	private BoxRenderer() {
+	}
+
+	/**
+	 * @return the text that the given Box expression formats to
+	 * @throws BoxSyntaxException
+	 *             if the Box expression has syntax errors
+	 * @throws BoxException
+	 *             if the Box tools are not available
+	 */
+	public static String box2Text(String boxString) throws BoxException {
+		if (boxString == null || boxString.length() == 0) {
+			return "";
+		}
+
+		long start = Activator.getMetrics().start();
+
+		try {
+			return BoxToolPool.getDefault().box2Text(boxString);
+		} finally {
+			Activator.getMetrics().stop(Metrics.RENDER, start);
+		}
+	}
+}
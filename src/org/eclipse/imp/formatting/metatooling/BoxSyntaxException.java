@@ -0,0 +1,27 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import org.eclipse.imp.box.builders.BoxException;
+
+/**
+ * Thrown when a Box expression itself is wrong, as opposed to the Box tools
+ * being unavailable or interrupted. Rendering the same expression again
+ * fails again, so the failure may be remembered.
+ */
+public class BoxSyntaxException extends BoxException {
+	private static final long serialVersionUID = 1L;
+
+	public BoxSyntaxException(String message, String boxString) {
+		super(message, boxString, null);
+	}
+}
@@ -0,0 +1,508 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.imp.box.builders.BoxException;
+import org.eclipse.imp.box.builders.BoxFactory;
+import org.eclipse.imp.utils.SavingMessageHandler;
+
+/**
+ * Runs the external Box tools (sglr and pandora, via BoxFactory) on a small
+ * number of long-lived worker threads.
+ *
+ * Requests are queued, and a worker that becomes free takes all queued
+ * requests at once (up to {@link #MAX_BATCH}) and formats them in a single
+ * round trip, by wrapping them in one vertical Box and splitting the output
+ * on separator lines. This is what makes re-formatting many rules at once,
+ * e.g. after a space option changed, cheap: the process start-up cost is paid
+ * once per batch instead of once per rule.
+ *
+ * The pool checks that the tools work, and that batching reproduces the
+ * output of single calls on multi-line and indented probe boxes, before it
+ * batches anything. If the tools are broken, requests fail fast until the
+ * next check.
+ */
+public class BoxToolPool {
+	/**
+	 * The maximum number of Box expressions formatted in one round trip.
+	 */
+	public static final int MAX_BATCH = 64;
+
+	/**
+	 * Milliseconds between health checks after the tools were found to be
+	 * broken.
+	 */
+	private static final long HEALTH_CHECK_INTERVAL = 30000;
+
+	private static final String SEPARATOR = "@@imp-formatting-box-separator@@";
+
+	private static final String[] PROBE_BOXES = {
+		"H [ \"a\" \"b\" ]",
+		"V [ \"a\" I [ V [ \"b\" H hs=0 [ \"c\" \";\" ] ] ] \"d\" ]",
+		"V [ H [ \"e\" \"{\" ] I is=4 [ \"f\" I [ HV [ \"g\" \"h\" ] ] ] \"}\" ]"
+	};
+
+	private static BoxToolPool sDefault;
+
+	private static boolean sShutdown = false;
+
+	private final int fSize;
+
+	private final BlockingQueue<Request> fQueue = new LinkedBlockingQueue<Request>();
+
+	/**
+	 * Bounds the number of concurrently running tool processes.
+	 */
+	private final Semaphore fProcesses;
+
+	private final List<Thread> fWorkers = new ArrayList<Thread>();
+
+	private boolean fShutdown = false;
+
+	private boolean fChecked = false;
+
+	/**
+	 * Set while a thread runs the health check, which is done without
+	 * holding the lock of the pool.
+	 */
+	private boolean fChecking = false;
+
+	private boolean fHealthy = false;
+
+	private long fLastCheck = 0;
+
+	/**
+	 * What a batched rendering lacks at its end compared to a single one, or
+	 * null if batching does not reproduce single renderings.
+	 */
+	private String fBatchSuffix = null;
+
+	public BoxToolPool(int size) {
+		fSize = size;
+		fProcesses = new Semaphore(size);
+	}
+
+	/**
+	 * @return the shared pool, sized on the number of processors
+	 * @throws BoxException
+	 *             if the shared pool was shut down
+	 */
+	public static synchronized BoxToolPool getDefault() throws BoxException {
+		if (sShutdown) {
+			throw new BoxException("The Box tools have been shut down", null, null);
+		}
+		if (sDefault == null) {
+			sDefault = new BoxToolPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Allows the shared pool to be made again after
+	 * {@link #shutdownDefault()}, when the plug-in is started again.
+	 */
+	public static synchronized void startDefault() {
+		sShutdown = false;
+	}
+
+	/**
+	 * Stops the shared pool, if it was ever started. After this,
+	 * {@link #getDefault()} fails until {@link #startDefault()}.
+	 */
+	public static synchronized void shutdownDefault() {
+		sShutdown = true;
+		if (sDefault != null) {
+			sDefault.shutdown();
+			sDefault = null;
+		}
+	}
+
+	/**
+	 * Formats a Box expression to text with the external tools. Blocks until
+	 * the result is available.
+	 */
+	public String box2Text(String boxString) throws BoxException {
+		long start = Activator.getMetrics().start();
+
+		try {
+			return submit(boxString);
+		} finally {
+			Activator.getMetrics().stop(Metrics.BOX_TO_TEXT, start);
+		}
+	}
+
+	private String submit(String boxString) throws BoxException {
+		if (!isHealthy()) {
+			throw new BoxException("The Box tools are not available", boxString, null);
+		}
+
+		Request request = new Request(boxString);
+
+		synchronized (this) {
+			if (fShutdown) {
+				throw new BoxException("The Box tools have been shut down", boxString, null);
+			}
+			startWorkers();
+			fQueue.add(request);
+		}
+
+		return request.await();
+	}
+
+	/**
+	 * Pretty prints a Box expression with the external tools. This cannot be
+	 * batched, but counts against the same bound on concurrent processes.
+	 */
+	public String formatBox(String boxString) throws BoxException {
+		try {
+			fProcesses.acquire();
+		} catch (InterruptedException e) {
+			throw new BoxException("Interrupted while waiting for the Box tools", boxString, null);
+		}
+
+		long start = Activator.getMetrics().start();
+
+		try {
+			return BoxFactory.formatBox(boxString);
+		} catch (Exception e) {
+			throw new BoxException(e.getMessage(), boxString, null);
+		} finally {
+			fProcesses.release();
+			Activator.getMetrics().stop(Metrics.BOX_TO_TEXT, start);
+		}
+	}
+
+	/**
+	 * @return true iff the external tools produced the expected output the
+	 *         last time they were checked. Checks again if that was too long
+	 *         ago.
+	 */
+	public boolean isHealthy() {
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			while (fChecking) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return fHealthy;
+				}
+			}
+
+			if (fChecked && (fHealthy || now - fLastCheck <= HEALTH_CHECK_INTERVAL)) {
+				return fHealthy;
+			}
+			fChecking = true;
+		}
+
+		boolean healthy = false;
+
+		try {
+			healthy = check();
+		} finally {
+			synchronized (this) {
+				fHealthy = healthy;
+				fChecked = true;
+				fLastCheck = now;
+				fChecking = false;
+				notifyAll();
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * Stops the workers. Queued requests fail.
+	 */
+	public synchronized void shutdown() {
+		fShutdown = true;
+
+		for (Thread worker : fWorkers) {
+			worker.interrupt();
+		}
+		fWorkers.clear();
+
+		List<Request> pending = new ArrayList<Request>();
+		fQueue.drainTo(pending);
+
+		for (Request request : pending) {
+			request.fail("The Box tools have been shut down");
+		}
+	}
+
+	/**
+	 * Runs the tools on the probe boxes, one by one and as a batch. Called
+	 * without holding the lock, as it starts external processes.
+	 *
+	 * @return true iff the tools work
+	 */
+	private boolean check() {
+		boolean healthy = false;
+		String suffix = null;
+
+		try {
+			String[] singles = new String[PROBE_BOXES.length];
+
+			for (int i = 0; i < PROBE_BOXES.length; i++) {
+				singles[i] = run(PROBE_BOXES[i]);
+			}
+			healthy = singles[0].trim().length() > 0;
+
+			if (healthy) {
+				suffix = getBatchSuffix(singles);
+			}
+		} catch (BoxException e) {
+			healthy = false;
+		}
+
+		synchronized (this) {
+			fBatchSuffix = suffix;
+		}
+		return healthy;
+	}
+
+	/**
+	 * @return what the pieces of a batch of the probe boxes lack compared to
+	 *         their single renderings, or null if some piece differs from its
+	 *         single rendering in another way
+	 */
+	private static String getBatchSuffix(String[] singles) throws BoxException {
+		List<String> pieces = split(run(batch(PROBE_BOXES)), PROBE_BOXES.length);
+
+		if (pieces == null || !singles[0].startsWith(pieces.get(0))) {
+			return null;
+		}
+
+		String suffix = singles[0].substring(pieces.get(0).length());
+
+		for (int i = 0; i < singles.length; i++) {
+			if (!singles[i].equals(pieces.get(i) + suffix)) {
+				return null;
+			}
+		}
+		return suffix;
+	}
+
+	private void startWorkers() {
+		while (fWorkers.size() < fSize) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "Box tools worker " + fWorkers.size());
+			worker.setDaemon(true);
+			fWorkers.add(worker);
+			worker.start();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			List<Request> batch = new ArrayList<Request>();
+
+			try {
+				batch.add(fQueue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			fQueue.drainTo(batch, MAX_BATCH - 1);
+
+			try {
+				fProcesses.acquire();
+			} catch (InterruptedException e) {
+				for (Request request : batch) {
+					request.fail("The Box tools have been shut down");
+				}
+				return;
+			}
+
+			try {
+				process(batch);
+			} finally {
+				fProcesses.release();
+			}
+		}
+	}
+
+	private void process(List<Request> batch) {
+		if (batch.size() > 1) {
+			String[] boxes = new String[batch.size()];
+
+			for (int i = 0; i < boxes.length; i++) {
+				boxes[i] = batch.get(i).fBox;
+			}
+
+			try {
+				List<String> texts = renderBatch(boxes);
+
+				if (texts != null) {
+					for (int i = 0; i < boxes.length; i++) {
+						batch.get(i).succeed(texts.get(i));
+					}
+					return;
+				}
+			} catch (BoxException e) {
+				// one of the boxes is broken; find out which below
+			}
+		}
+
+		for (Request request : batch) {
+			try {
+				request.succeed(run(request.fBox));
+			} catch (BoxException e) {
+				request.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Formats the given boxes in one round trip.
+	 *
+	 * @return the text of every box, or null if the probes showed that
+	 *         batching does not reproduce single calls, or if the output could
+	 *         not be split
+	 */
+	List<String> renderBatch(String[] boxes) throws BoxException {
+		String suffix;
+
+		synchronized (this) {
+			suffix = fBatchSuffix;
+		}
+
+		if (suffix == null) {
+			return null;
+		}
+
+		List<String> pieces = split(run(batch(boxes)), boxes.length);
+
+		if (pieces == null) {
+			return null;
+		}
+
+		List<String> texts = new ArrayList<String>(pieces.size());
+
+		for (String piece : pieces) {
+			texts.add(piece + suffix);
+		}
+		return texts;
+	}
+
+	/**
+	 * @throws BoxSyntaxException
+	 *             if the tools ran and reported errors in the expression
+	 */
+	static String run(String boxString) throws BoxException {
+		SavingMessageHandler smh= new SavingMessageHandler();
+		String result= BoxFactory.box2Text(boxString, smh);
+
+		if (smh.getMessages().size() > 0 || result == null) {
+			throw new BoxSyntaxException(smh.getConcatenatedMessages(), boxString);
+		}
+		return result;
+	}
+
+	private static String batch(String[] boxes) {
+		StringBuilder b = new StringBuilder("V vs=0 [\n");
+
+		for (int i = 0; i < boxes.length; i++) {
+			if (i > 0) {
+				b.append("\"").append(SEPARATOR).append("\"\n");
+			}
+			b.append(boxes[i]).append('\n');
+		}
+		return b.append("]").toString();
+	}
+
+	/**
+	 * @return the renderings of the boxes in a batch, or null if the output
+	 *         does not contain the expected number of pieces
+	 */
+	private static List<String> split(String output, int expected) {
+		List<String> pieces = new ArrayList<String>(expected);
+		StringBuilder piece = new StringBuilder();
+		String[] lines = output.split("\n", -1);
+
+		for (int i = 0; i < lines.length; i++) {
+			if (lines[i].trim().equals(SEPARATOR)) {
+				pieces.add(piece.toString());
+				piece.setLength(0);
+			} else {
+				if (piece.length() > 0) {
+					piece.append('\n');
+				}
+				piece.append(lines[i]);
+			}
+		}
+
+		// the last piece also holds the end of the output, which the others
+		// lack because they are followed by a separator
+		String last = piece.toString();
+		pieces.add(last.endsWith("\n") ? last.substring(0, last.length() - 1) : last);
+
+		return pieces.size() == expected ? pieces : null;
+	}
+
+	private static class Request {
+		private final String fBox;
+
+		private final CountDownLatch fDone = new CountDownLatch(1);
+
+		private String fResult;
+
+		private String fError;
+
+		private boolean fSyntaxError;
+
+		public Request(String box) {
+			fBox = box;
+		}
+
+		public void succeed(String result) {
+			fResult = result;
+			fDone.countDown();
+		}
+
+		public void fail(String error) {
+			fError = error;
+			fDone.countDown();
+		}
+
+		public void fail(BoxException e) {
+			fSyntaxError = e instanceof BoxSyntaxException;
+			fail(e.getMessage());
+		}
+
+		public String await() throws BoxException {
+			try {
+				fDone.await();
+			} catch (InterruptedException e) {
+				throw new BoxException("Interrupted while waiting for the Box tools", fBox, null);
+			}
+
+			if (fSyntaxError) {
+				throw new BoxSyntaxException(fError, fBox);
+			}
+			if (fError != null) {
+				throw new BoxException(fError, fBox, null);
+			}
+			return fResult;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.imp.formatting.spec.ExtensionPointBinder;
+import org.eclipse.imp.language.Language;
+import org.eclipse.imp.language.LanguageRegistry;
+import org.eclipse.imp.services.IASTAdapter;
+import org.eclipse.jdt.core.JavaCore;
+import org.osgi.framework.Bundle;
+
+/**
+ * Caches everything that is needed to run a formatting specification against
+ * its object language: the Language itself, a reference to the workspace
+ * bundles that had to be activated to make its parser and formatting
+ * extension available, and the ExtensionPointBinder that provides the AST
+ * adapter. The bundles are shared with all other bindings for the language
+ * through {@link WorkspaceBundles}.
+ *
+ * Resolving these is expensive, and they only change when the specification
+ * is bound to a different language or when one of the workspace bundles is
+ * rebuilt. Use {@link #isAffectedBy(IResourceDelta)} to detect the latter and
+ * {@link #rebuilt()} to deactivate the old bundles; {@link #invalidate()}
+ * only drops the cached state. Everything that parses or formats with the
+ * language must call {@link #bind(String)} first, so the bundles are
+ * activated again after a rebuild.
+ *
+ * This class is thread-safe.
+ */
+public class LanguageBinding {
+	private static final IPath PLUGIN_XML = new Path("plugin.xml");
+
+	private static final IPath MANIFEST = new Path("META-INF/MANIFEST.MF");
+
+	private String fLanguageName;
+
+	private Language fLanguage;
+
+	private ExtensionPointBinder fBinder;
+
+	private IASTAdapter fAdapter;
+
+	/**
+	 * The shared bundles of the bound language, or null if no language is
+	 * bound.
+	 */
+	private WorkspaceBundles.Entry fBundles;
+
+	/**
+	 * Makes sure the workspace bundles for the given language are active. This
+	 * is a no-op if the binding is already established for that language,
+	 * and its bundles were not rebuilt since.
+	 */
+	public synchronized void bind(String langName) {
+		if (langName == null || (langName.equals(fLanguageName) && !fBundles.isStale())) {
+			return;
+		}
+
+		invalidate();
+		fLanguageName = langName;
+		fBundles = WorkspaceBundles.acquire(langName);
+	}
+
+	/**
+	 * @return the name of the language currently bound, or null
+	 */
+	public synchronized String getLanguageName() {
+		return fLanguageName;
+	}
+
+	/**
+	 * @return the Language for the given name, binding to it first if needed
+	 */
+	public synchronized Language getLanguage(String langName) {
+		bind(langName);
+
+		if (fLanguage == null) {
+			fLanguage = LanguageRegistry.findLanguage(langName);
+		}
+		return fLanguage;
+	}
+
+	/**
+	 * @return the extension point binder for the given language, binding to it
+	 *         first if needed
+	 */
+	public synchronized ExtensionPointBinder getBinder(String langName) {
+		Language language = getLanguage(langName);
+
+		if (fBinder == null && language != null) {
+			fBinder = new ExtensionPointBinder(language);
+		}
+		return fBinder;
+	}
+
+	/**
+	 * @return the AST adapter for the given language, binding to it first if
+	 *         needed
+	 */
+	public synchronized IASTAdapter getASTAdapter(String langName) {
+		ExtensionPointBinder binder = getBinder(langName);
+
+		if (fAdapter == null && binder != null) {
+			fAdapter = binder.getASTAdapter();
+		}
+		return fAdapter;
+	}
+
+	/**
+	 * Forgets the cached language, binder and adapter, and the reference to
+	 * the workspace bundles. The bundles stay active for other bindings. The
+	 * next request binds from scratch.
+	 */
+	public synchronized void invalidate() {
+		fLanguageName = null;
+		fLanguage = null;
+		fBinder = null;
+		fAdapter = null;
+
+		if (fBundles != null) {
+			WorkspaceBundles.release(fBundles);
+			fBundles = null;
+		}
+	}
+
+	/**
+	 * Deactivates the workspace bundles of this binding, because one of them
+	 * was rebuilt, and forgets the cached state. All bindings for the
+	 * language bind again before their next use.
+	 */
+	public synchronized void rebuilt() {
+		if (fBundles != null) {
+			WorkspaceBundles.rebuilt(fBundles);
+		}
+		invalidate();
+	}
+
+	/**
+	 * @return true iff the given workspace delta changes what one of the
+	 *         bundles of this binding is built from, see
+	 *         {@link #getBundlePaths(IProject)}
+	 */
+	public synchronized boolean isAffectedBy(IResourceDelta delta) {
+		if (delta == null) {
+			return false;
+		}
+
+		IResourceDelta[] children = delta.getAffectedChildren();
+
+		for (int i = 0; i < children.length; i++) {
+			IResource resource = children[i].getResource();
+
+			if (resource instanceof IProject && isAffectedBy((IProject) resource, children[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true iff the given project provides one of the bundles of this
+	 *         binding, and its delta changes what that bundle is built from
+	 */
+	public synchronized boolean isAffectedBy(IProject project, IResourceDelta delta) {
+		if (delta == null || fBundles == null || !(isProvidedBy(fBundles.getLanguageProjectBundle(), project) || isProvidedBy(fBundles.getFormattingProjectBundle(), project))) {
+			return false;
+		}
+
+		for (IPath path : getBundlePaths(project)) {
+			if (delta.findMember(path) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the paths, relative to the project, that a bundle built from the
+	 *         given project changes with: its plugin.xml, its manifest and
+	 *         the output folder of its classes. Other changes, such as saving
+	 *         a specification in the project, leave the bundle alone.
+	 */
+	public static List<IPath> getBundlePaths(IProject project) {
+		List<IPath> paths = new ArrayList<IPath>();
+
+		paths.add(PLUGIN_XML);
+		paths.add(MANIFEST);
+
+		try {
+			if (project.isOpen() && project.hasNature(JavaCore.NATURE_ID)) {
+				paths.add(JavaCore.create(project).getOutputLocation().removeFirstSegments(1));
+			}
+		} catch (CoreException e) {
+			// no Java project, so no classes to watch
+		}
+		return paths;
+	}
+
+	private boolean isProvidedBy(Bundle bundle, IProject project) {
+		if (bundle == null) {
+			return false;
+		}
+		if (project.getName().equals(bundle.getSymbolicName())) {
+			return true;
+		}
+
+		IPath location = project.getLocation();
+		String bundleLocation = bundle.getLocation();
+
+		return location != null && bundleLocation != null && bundleLocation.indexOf(location.toString()) != -1;
+	}
+}
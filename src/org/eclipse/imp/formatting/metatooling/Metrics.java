@@ -0,0 +1,178 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers and counters for the stages of loading, validating, formatting and
+ * building specifications, to find out where the time of a slow edit or
+ * build goes. Available from {@link Activator#getMetrics()}.
+ *
+ * A stage is timed by passing the result of {@link #start()} to
+ * {@link #stop(String, long)}. When the metrics are disabled, which is the
+ * default, start returns 0 without reading the clock and stop returns at
+ * once, so the instrumentation costs a field read per call. They are enabled
+ * with {@link #setEnabled(boolean)}, or from the start with the system
+ * property <code>org.eclipse.imp.formatting.metatooling.metrics=true</code>.
+ *
+ * All methods may be called from any thread.
+ */
+public class Metrics {
+	public static final String SPEC_LOAD = "spec.load";
+
+	public static final String OPTION_BIND = "option.bind";
+
+	public static final String BOX_PARSE = "box.parse";
+
+	public static final String BOX_TO_TEXT = "box.box2text";
+
+	public static final String PREVIEW_PARSE = "preview.parse";
+
+	public static final String TRANSFORM = "transform";
+
+	public static final String RENDER = "render";
+
+	public static final String BUILD_COMPILE = "build.compile";
+
+	public static final String BUILD_WRITE = "build.write";
+
+	private volatile boolean fEnabled = Boolean.getBoolean(Activator.PLUGIN_ID + ".metrics");
+
+	private volatile long fSince = System.currentTimeMillis();
+
+	private final ConcurrentMap<String, Stage> fStages = new ConcurrentHashMap<String, Stage>();
+
+	public boolean isEnabled() {
+		return fEnabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		fEnabled = enabled;
+	}
+
+	/**
+	 * @return the start time of a stage, or 0 if the metrics are disabled
+	 */
+	public long start() {
+		return fEnabled ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Records the time of a stage since the given start time. Does nothing if
+	 * the start time is 0.
+	 */
+	public void stop(String stage, long start) {
+		if (start != 0L) {
+			getStage(stage).add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Counts an event that is not timed.
+	 */
+	public void count(String stage) {
+		if (fEnabled) {
+			getStage(stage).add(-1L);
+		}
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset() {
+		fStages.clear();
+		fSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the recorded counts and times as a JSON object, with times in
+	 *         microseconds
+	 */
+	public String toJSON() {
+		SortedMap<String, Stage> stages = new TreeMap<String, Stage>(fStages);
+		StringBuilder b = new StringBuilder();
+
+		b.append("{\n  \"enabled\": ").append(fEnabled);
+		b.append(",\n  \"since\": ").append(fSince);
+		b.append(",\n  \"snapshot\": ").append(System.currentTimeMillis());
+		b.append(",\n  \"stages\": {");
+
+		boolean first = true;
+
+		for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+			Stage stage = entry.getValue();
+			long count = stage.fCount.get();
+			long total = stage.fTotal.get();
+
+			b.append(first ? "\n" : ",\n");
+			b.append("    \"").append(entry.getKey()).append("\": { \"count\": ").append(count);
+			if (stage.fTimed.get() > 0) {
+				b.append(", \"totalMicros\": ").append(total / 1000);
+				b.append(", \"meanMicros\": ").append(total / stage.fTimed.get() / 1000);
+				b.append(", \"maxMicros\": ").append(stage.fMax.get() / 1000);
+			}
+			b.append(" }");
+			first = false;
+		}
+
+		b.append(first ? "}\n}\n" : "\n  }\n}\n");
+		return b.toString();
+	}
+
+	private Stage getStage(String name) {
+		Stage stage = fStages.get(name);
+
+		if (stage == null) {
+			stage = new Stage();
+			Stage existing = fStages.putIfAbsent(name, stage);
+
+			if (existing != null) {
+				stage = existing;
+			}
+		}
+		return stage;
+	}
+
+	private static class Stage {
+		private final AtomicLong fCount = new AtomicLong();
+
+		private final AtomicLong fTimed = new AtomicLong();
+
+		private final AtomicLong fTotal = new AtomicLong();
+
+		private final AtomicLong fMax = new AtomicLong();
+
+		/**
+		 * @param nanos
+		 *            the time of one occurrence, or -1 if it was not timed
+		 */
+		public void add(long nanos) {
+			fCount.incrementAndGet();
+
+			if (nanos >= 0) {
+				fTimed.incrementAndGet();
+				fTotal.addAndGet(nanos);
+
+				long max;
+				while (nanos > (max = fMax.get()) && !fMax.compareAndSet(max, nanos)) {
+					// another thread recorded a new maximum at the same time
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.imp.utils.DynamicBundleUtils;
+import org.osgi.framework.Bundle;
+
+/**
+ * The single owner of the workspace bundles that are activated for
+ * languages. Every LanguageBinding shares the bundles of its language
+ * through a reference counted entry here, so an editor that is closed does
+ * not take the bundles away from other editors, the builder or the daemon.
+ *
+ * Bundles are only deactivated when one of them was rebuilt, see
+ * {@link #rebuilt(Entry)}, and then only once for all bindings.
+ */
+final class WorkspaceBundles {
+	private static final String FORMATTING_EXTENSION_ID = "org.eclipse.imp.formatting.formattingSpecification";
+
+	private static final Map<String, Entry> sEntries = new HashMap<String, Entry>();
+
+	private WorkspaceBundles() {
+	}
+
+	/**
+	 * @return the entry for the given language, activating its bundles if no
+	 *         binding holds them yet. The caller must {@link #release(Entry)}
+	 *         it.
+	 */
+	public static synchronized Entry acquire(String langName) {
+		Entry entry = sEntries.get(langName);
+
+		if (entry == null) {
+			entry = new Entry(langName);
+			sEntries.put(langName, entry);
+		}
+		entry.fReferences++;
+		return entry;
+	}
+
+	/**
+	 * Drops a reference to an entry. The bundles stay active, so the next
+	 * binding for the language does not have to activate them again.
+	 */
+	public static synchronized void release(Entry entry) {
+		entry.fReferences--;
+
+		if (entry.fReferences == 0 && sEntries.get(entry.fLanguageName) == entry) {
+			sEntries.remove(entry.fLanguageName);
+		}
+	}
+
+	/**
+	 * Deactivates the bundles of an entry because one of them was rebuilt.
+	 * The first binding to notice the rebuild does this; for the others the
+	 * entry is already stale and this does nothing. Every binding holding a
+	 * stale entry binds again before it is used.
+	 */
+	public static synchronized void rebuilt(Entry entry) {
+		if (entry.fStale) {
+			return;
+		}
+
+		entry.fStale = true;
+		if (sEntries.get(entry.fLanguageName) == entry) {
+			sEntries.remove(entry.fLanguageName);
+		}
+
+		if (entry.fLanguageProjectBundle != null) {
+			DynamicBundleUtils.deactivateWorkspaceBundle(entry.fLanguageProjectBundle);
+		}
+		if (entry.fFormattingProjectBundle != null && entry.fFormattingProjectBundle != entry.fLanguageProjectBundle) {
+			DynamicBundleUtils.deactivateWorkspaceBundle(entry.fFormattingProjectBundle);
+		}
+	}
+
+	/**
+	 * The bundles activated for one language.
+	 */
+	public static final class Entry {
+		private final String fLanguageName;
+
+		/**
+		 * The dynamically-activated Bundle containing the language descriptor for the language.
+		 * If non-null, this will invariably refer to a workspace project.
+		 */
+		private final Bundle fLanguageProjectBundle;
+
+		/**
+		 * The dynamically-activated Bundle containing the formatting extension for the language.
+		 * If non-null, this will invariably refer to a workspace project.
+		 */
+		private final Bundle fFormattingProjectBundle;
+
+		private int fReferences = 0;
+
+		private boolean fStale = false;
+
+		private Entry(String langName) {
+			fLanguageName = langName;
+
+			// Note: the extensions for the languageDescription and the formattingDescription may
+			// reside in the same bundle. If so, that's ok; activateWorkspaceBundleForExtension()
+			// is a no-op if the bundle in question is already loaded/activated.
+			fLanguageProjectBundle = DynamicBundleUtils.activateWorkspaceBundleForLanguage(langName);
+			if (fLanguageProjectBundle != null) {
+				fFormattingProjectBundle = DynamicBundleUtils.activateWorkspaceBundleForExtension(langName, FORMATTING_EXTENSION_ID);
+			} else {
+				fFormattingProjectBundle = null;
+			}
+		}
+
+		public Bundle getLanguageProjectBundle() {
+			return fLanguageProjectBundle;
+		}
+
+		public Bundle getFormattingProjectBundle() {
+			return fFormattingProjectBundle;
+		}
+
+		/**
+		 * @return true iff the bundles were deactivated after a rebuild
+		 */
+		public boolean isStale() {
+			synchronized (WorkspaceBundles.class) {
+				return fStale;
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.batch;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.imp.box.builders.BoxException;
+import org.eclipse.imp.formatting.metatooling.Activator;
+import org.eclipse.imp.formatting.metatooling.BoxRenderer;
+import org.eclipse.imp.formatting.metatooling.LanguageBinding;
+import org.eclipse.imp.formatting.metatooling.Metrics;
+import org.eclipse.imp.formatting.metatooling.transform.BoxTransformer;
+import org.eclipse.imp.formatting.spec.ParseException;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.formatting.spec.Transformer;
+import org.eclipse.imp.language.Language;
+import org.eclipse.imp.services.IASTAdapter;
+import org.eclipse.imp.utils.SavingMessageHandler;
+
+/**
+ * Formats source text with a formatting specification, outside of the
+ * editor: the source is parsed, transformed to a Box expression and rendered.
+ *
+ * The specification is loaded once. Every thread that formats gets its own
+ * Parser, its own copy of the specification and its own BoxTransformer,
+ * since the Parser and the specification are not thread-safe, so a single
+ * BatchFormatter can be used from a pool of threads.
+ */
+public class BatchFormatter {
+	private static final Pattern LANGUAGE_ELEMENT = Pattern.compile("<language>([a-zA-Z0-9_]+)</language>");
+
+	private final IPath fSpecPath;
+
+	private final String fSpecText;
+
+	private final String fLanguageName;
+
+	private final LanguageBinding fBinding;
+
+	private final ThreadLocal<Session> fSessions = new ThreadLocal<Session>();
+
+	/**
+	 * @param specPath
+	 *            the location of the specification
+	 * @param specText
+	 *            the contents of the specification
+	 * @throws ParseException
+	 *             if the specification has errors
+	 * @throws FormattingException
+	 *             if the specification names no language, or one that is not
+	 *             installed
+	 */
+	public BatchFormatter(IPath specPath, String specText, LanguageBinding binding) throws ParseException, FormattingException {
+		Matcher m = LANGUAGE_ELEMENT.matcher(specText);
+
+		if (!m.find()) {
+			throw new FormattingException("The specification does not name a language");
+		}
+
+		fSpecPath = specPath;
+		fSpecText = specText;
+		fLanguageName = m.group(1);
+		fBinding = binding;
+
+		if (fBinding.getLanguage(fLanguageName) == null) {
+			throw new FormattingException("Language " + fLanguageName + " is not installed");
+		}
+		if (fBinding.getASTAdapter(fLanguageName) == null) {
+			throw new FormattingException("Language " + fLanguageName + " has no AST adapter");
+		}
+
+		// load it once here, to report errors in the specification early
+		fSessions.set(new Session());
+	}
+
+	public String getLanguageName() {
+		return fLanguageName;
+	}
+
+	public Language getLanguage() {
+		return fBinding.getLanguage(fLanguageName);
+	}
+
+	/**
+	 * Formats a source text. May be called on any thread.
+	 */
+	public String format(String source) throws FormattingException {
+		Session session = getSession();
+		Object ast = parse(session, source);
+		String box;
+
+		try {
+			if (session.fTransformer != null) {
+				box = session.fTransformer.transformToBox(source, ast);
+			} else {
+				long start = Activator.getMetrics().start();
+				box = new Transformer(session.fSpec, fBinding.getASTAdapter(fLanguageName)).transformToBox(source, ast);
+				Activator.getMetrics().stop(Metrics.TRANSFORM, start);
+			}
+		} catch (Exception e) {
+			throw new FormattingException("Could not transform to Box: " + e.getMessage(), e);
+		}
+
+		try {
+			return BoxRenderer.box2Text(box);
+		} catch (BoxException e) {
+			throw new FormattingException("Could not render Box: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Formats only the smallest node of a source text that covers a range. May
+	 * be called on any thread.
+	 *
+	 * @return the edit that replaces the text of that node, or null if the
+	 *         Transformer has to be used, which can only format whole sources
+	 */
+	public BoxTransformer.Edit formatRange(String source, int offset, int length) throws FormattingException {
+		Session session = getSession();
+
+		if (session.fTransformer == null) {
+			return null;
+		}
+
+		Object ast = parse(session, source);
+
+		try {
+			return session.fTransformer.formatRange(source, ast, offset, length);
+		} catch (BoxException e) {
+			throw new FormattingException("Could not render Box: " + e.getMessage(), e);
+		}
+	}
+
+	private Object parse(Session session, String source) throws FormattingException {
+		Parser parser = session.fParser;
+		SavingMessageHandler smh = (SavingMessageHandler) parser.getMessageHandler();
+
+		smh.clearMessages();
+		Object ast = parser.parseObject(source);
+
+		if (ast == null) {
+			throw new FormattingException("Syntax error: " + smh.getConcatenatedMessages());
+		}
+		return ast;
+	}
+
+	/**
+	 * @return the AST adapter of the language, shared by all threads
+	 */
+	public IASTAdapter getASTAdapter() {
+		return fBinding.getASTAdapter(fLanguageName);
+	}
+
+	private Session getSession() throws FormattingException {
+		Session session = fSessions.get();
+
+		if (session == null) {
+			try {
+				session = new Session();
+			} catch (ParseException e) {
+				throw new FormattingException("Could not load the specification: " + e.getMessage(), e);
+			}
+			fSessions.set(session);
+		}
+		return session;
+	}
+
+	/**
+	 * The parser, specification and transformer used by one thread.
+	 */
+	private class Session {
+		private final Parser fParser;
+
+		private final Specification fSpec;
+
+		/**
+		 * Null if a rule has a Box expression that BoxTransformer can not
+		 * handle, in which case the Transformer is used.
+		 */
+		private final BoxTransformer fTransformer;
+
+		public Session() throws ParseException {
+			BoxTransformer transformer;
+
+			fParser = new Parser(fSpecPath, null, new SavingMessageHandler());
+			long start = Activator.getMetrics().start();
+			fSpec = fParser.load(fSpecText);
+			Activator.getMetrics().stop(Metrics.SPEC_LOAD, start);
+
+			try {
+				transformer = new BoxTransformer(fSpec, fBinding.getASTAdapter(fLanguageName));
+			} catch (BoxException e) {
+				transformer = null;
+			}
+			fTransformer = transformer;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.batch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+/**
+ * Runs a {@link FormattingDaemon} until the application is stopped.
+ * Registered as the application
+ * <code>org.eclipse.imp.formatting.metatooling.daemon</code>:
+ *
+ * <pre>
+ * eclipse -nosplash -application org.eclipse.imp.formatting.metatooling.daemon
+ *     [-port n] [-threads n] [-portfile file] [-allow folder]...
+ * </pre>
+ *
+ * Without -port a free port is chosen. The port is printed, and written to
+ * the -portfile if given, such that clients can find the daemon.
+ *
+ * The daemon only reads specifications inside the folders given with -allow,
+ * or inside the workspace if there are none.
+ */
+public class DaemonApplication implements IApplication {
+	private volatile FormattingDaemon fDaemon;
+
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		int port = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		File portFile = null;
+		List<File> roots = new ArrayList<File>();
+
+		if (args == null) {
+			args = new String[0];
+		}
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-port")) {
+					port = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-threads")) {
+					threads = Math.max(1, Integer.parseInt(args[++i]));
+				} else if (args[i].equals("-portfile")) {
+					portFile = new File(args[++i]);
+				} else if (args[i].equals("-allow")) {
+					roots.add(new File(args[++i]));
+				} else {
+					return usage("Unknown argument " + args[i]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return usage("Missing value for " + args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			return usage(e.getMessage());
+		}
+
+		if (roots.size() == 0) {
+			IPath workspace = ResourcesPlugin.getWorkspace().getRoot().getLocation();
+
+			if (workspace == null) {
+				return usage("There is no workspace; give the folders holding specifications with -allow");
+			}
+			roots.add(workspace.toFile());
+		}
+
+		fDaemon = new FormattingDaemon(port, threads, roots);
+		context.applicationRunning();
+
+		System.out.println("Formatting daemon listening on 127.0.0.1:" + fDaemon.getPort());
+		if (portFile != null) {
+			writePort(portFile, fDaemon.getPort());
+		}
+
+		try {
+			fDaemon.serve();
+		} finally {
+			if (portFile != null) {
+				portFile.delete();
+			}
+		}
+		return EXIT_OK;
+	}
+
+	public void stop() {
+		FormattingDaemon daemon = fDaemon;
+
+		if (daemon != null) {
+			daemon.shutdown();
+		}
+	}
+
+	private static void writePort(File file, int port) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write((port + "\n").getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Integer usage(String message) {
+		System.err.println(message);
+		System.err.println("usage: [-port <n>] [-threads <n>] [-portfile <file>] [-allow <folder>]...");
+		return Integer.valueOf(2);
+	}
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.Path;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.eclipse.imp.formatting.metatooling.LanguageBinding;
+import org.eclipse.imp.formatting.spec.ParseException;
+import org.eclipse.imp.language.Language;
+
+/**
+ * Formats files and directory trees with a formatting specification, without
+ * a workbench. Registered as the application
+ * <code>org.eclipse.imp.formatting.metatooling.format</code>:
+ *
+ * <pre>
+ * eclipse -nosplash -application org.eclipse.imp.formatting.metatooling.format
+ *     -spec java.fsp [-out dir] [-threads n] [-encoding enc] file-or-dir...
+ * </pre>
+ *
+ * Directories are searched for files with an extension of the language of
+ * the specification. Files are formatted in place, or into a mirror of the
+ * input tree under the -out directory. One line is printed per file, with
+ * its time and any failure, as soon as it is done. The exit code is 1 if any
+ * file failed.
+ */
+public class FormatApplication implements IApplication {
+	private static final Integer EXIT_FAILURES = Integer.valueOf(1);
+
+	private static final Integer EXIT_USAGE = Integer.valueOf(2);
+
+	private volatile ExecutorService fPool;
+
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+
+		if (args == null) {
+			args = new String[0];
+		}
+
+		File spec = null;
+		File out = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String encoding = "UTF-8";
+		List<File> inputs = new ArrayList<File>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-spec")) {
+					spec = new File(args[++i]);
+				} else if (args[i].equals("-out")) {
+					out = new File(args[++i]);
+				} else if (args[i].equals("-threads")) {
+					threads = Math.max(1, Integer.parseInt(args[++i]));
+				} else if (args[i].equals("-encoding")) {
+					encoding = args[++i];
+				} else {
+					inputs.add(new File(args[i]));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return usage("Missing value for " + args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			return usage("-threads needs a number");
+		}
+
+		if (spec == null || inputs.size() == 0) {
+			return usage(null);
+		}
+
+		context.applicationRunning();
+
+		BatchFormatter formatter;
+
+		try {
+			formatter = new BatchFormatter(new Path(spec.getAbsolutePath()), read(spec, "UTF-8"), new LanguageBinding());
+		} catch (ParseException e) {
+			System.err.println("Error in specification " + spec + ": " + e.getMessage());
+			return EXIT_FAILURES;
+		} catch (FormattingException e) {
+			System.err.println(e.getMessage());
+			return EXIT_FAILURES;
+		}
+
+		List<File[]> files = new ArrayList<File[]>();
+
+		for (File input : inputs) {
+			collect(formatter.getLanguage(), input, out != null ? new File(out, input.getName()) : input, files, input.isFile());
+		}
+
+		return run(formatter, files, threads, encoding);
+	}
+
+	public void stop() {
+		ExecutorService pool = fPool;
+
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	private Integer run(final BatchFormatter formatter, List<File[]> files, int threads, final String encoding) throws InterruptedException {
+		final PrintStream log = System.out;
+		final AtomicInteger failures = new AtomicInteger();
+		long start = System.currentTimeMillis();
+
+		fPool = Executors.newFixedThreadPool(threads);
+
+		for (final File[] file : files) {
+			fPool.execute(new Runnable() {
+				public void run() {
+					long begin = System.currentTimeMillis();
+
+					try {
+						write(file[1], formatter.format(read(file[0], encoding)), encoding);
+						report(log, "OK", begin, file[0], null);
+					} catch (FormattingException e) {
+						failures.incrementAndGet();
+						report(log, "FAIL", begin, file[0], e.getMessage());
+					} catch (IOException e) {
+						failures.incrementAndGet();
+						report(log, "FAIL", begin, file[0], e.getMessage());
+					} catch (RuntimeException e) {
+						failures.incrementAndGet();
+						report(log, "FAIL", begin, file[0], e.toString());
+					}
+				}
+			});
+		}
+
+		fPool.shutdown();
+		fPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		log.println(files.size() + " files, " + failures.get() + " failed, " + (System.currentTimeMillis() - start) + " ms");
+
+		return failures.get() > 0 ? EXIT_FAILURES : EXIT_OK;
+	}
+
+	private static void report(PrintStream log, String status, long begin, File file, String message) {
+		StringBuilder line = new StringBuilder();
+
+		line.append(status).append('\t').append(System.currentTimeMillis() - begin).append(" ms\t").append(file.getPath());
+		if (message != null) {
+			line.append('\t').append(message.replace('\n', ' '));
+		}
+
+		// one call, such that lines of different threads do not mix
+		synchronized (log) {
+			log.println(line);
+		}
+	}
+
+	/**
+	 * Collects pairs of input and output files.
+	 */
+	private static void collect(Language language, File in, File out, List<File[]> files, boolean explicit) {
+		if (in.isDirectory()) {
+			File[] children = in.listFiles();
+
+			if (children != null) {
+				for (File child : children) {
+					collect(language, child, new File(out, child.getName()), files, false);
+				}
+			}
+		} else if (explicit || language.hasExtension(new Path(in.getName()).getFileExtension())) {
+			files.add(new File[] { in, out });
+		}
+	}
+
+	static String read(File file, String encoding) throws IOException {
+		InputStream in = new FileInputStream(file);
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toString(encoding);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes to a temporary file first, such that an interrupted run never
+	 * leaves a half written file behind.
+	 */
+	private static void write(File file, String text, String encoding) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Could not create " + dir);
+		}
+
+		File tmp = File.createTempFile("." + file.getName() + "-", ".tmp", dir);
+		OutputStream out = new FileOutputStream(tmp);
+
+		try {
+			out.write(text.getBytes(encoding));
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Could not write " + file);
+		}
+	}
+
+	private static Integer usage(String message) {
+		if (message != null) {
+			System.err.println(message);
+		}
+		System.err.println("usage: -spec <file.fsp> [-out <dir>] [-threads <n>] [-encoding <enc>] <file or directory>...");
+		return EXIT_USAGE;
+	}
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.core.runtime.Path;
+import org.eclipse.imp.formatting.metatooling.LanguageBinding;
+import org.eclipse.imp.formatting.metatooling.transform.BoxTransformer;
+import org.eclipse.imp.formatting.spec.ParseException;
+
+/**
+ * A formatting service on a loopback socket, which keeps specifications,
+ * their language bindings and parsers loaded between requests.
+ *
+ * The protocol is line based; all text is UTF-8 and all offsets and lengths
+ * of text are in characters, except for the byte counts that announce a
+ * payload. A connection may carry any number of requests:
+ *
+ * <pre>
+ * PING                                    -&gt; OK 0
+ * FORMAT &lt;bytes&gt; &lt;spec&gt;                   -&gt; OK &lt;bytes&gt;, the formatted text
+ * RANGE &lt;offset&gt; &lt;length&gt; &lt;bytes&gt; &lt;spec&gt;  -&gt; EDIT &lt;offset&gt; &lt;length&gt; &lt;bytes&gt;, the replacement
+ * QUIT                                    -&gt; closes the connection
+ * </pre>
+ *
+ * FORMAT and RANGE request lines are followed by the source, and OK and EDIT
+ * response lines by the result. Any failure is answered with
+ * <code>ERROR &lt;message&gt;</code>. A request line longer than
+ * {@link #MAX_LINE} characters, a source larger than
+ * {@link #MAX_SOURCE_BYTES} or a malformed FORMAT or RANGE line also closes
+ * the connection, as what follows can not be read as requests anymore.
+ *
+ * The spec is an absolute path inside one of the folders the daemon was
+ * given; a specification is loaded again when its file changes.
+ *
+ * A range request formats only the smallest node that covers the range, and
+ * is answered with the edit that replaces the text of that node. If the
+ * specification can only be applied to whole sources, it is answered with
+ * the smallest edit that turns the source into its formatted form, or with
+ * an empty edit if that does not touch the range.
+ */
+public class FormattingDaemon {
+	/**
+	 * The maximum length of a request line, in characters.
+	 */
+	public static final int MAX_LINE = 8192;
+
+	/**
+	 * The maximum size of a source, in bytes.
+	 */
+	public static final int MAX_SOURCE_BYTES = 16 * 1024 * 1024;
+
+	private final ServerSocket fServer;
+
+	private final ExecutorService fConnections;
+
+	private final Map<String, LoadedSpecification> fSpecifications = new HashMap<String, LoadedSpecification>();
+
+	/**
+	 * The folders that specifications may be read from, as canonical paths
+	 * ending with a separator.
+	 */
+	private final List<String> fRoots = new ArrayList<String>();
+
+	/**
+	 * @param port
+	 *            the port to listen on, or 0 for any free port
+	 * @param threads
+	 *            the maximum number of connections served at the same time
+	 * @param roots
+	 *            the folders that specifications may be read from
+	 */
+	public FormattingDaemon(int port, int threads, List<File> roots) throws IOException {
+		for (File root : roots) {
+			String path = root.getCanonicalPath();
+
+			fRoots.add(path.endsWith(File.separator) ? path : path + File.separator);
+		}
+
+		fServer = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		fConnections = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Formatting daemon connection");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public int getPort() {
+		return fServer.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until {@link #shutdown()} is called.
+	 */
+	public void serve() throws IOException {
+		while (true) {
+			final Socket socket;
+
+			try {
+				socket = fServer.accept();
+			} catch (SocketException e) {
+				if (fServer.isClosed()) {
+					return;
+				}
+				throw e;
+			}
+
+			fConnections.execute(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			});
+		}
+	}
+
+	public void shutdown() {
+		try {
+			fServer.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		fConnections.shutdownNow();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			try {
+				socket.setTcpNoDelay(true);
+
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				boolean open = true;
+
+				while (open) {
+					try {
+						String line = readLine(in);
+
+						if (line == null || line.equals("QUIT")) {
+							break;
+						}
+						handle(line, in, out);
+					} catch (BadRequestException e) {
+						writeError(e.getMessage(), out);
+						open = false;
+					} catch (FormattingException e) {
+						writeError(e.getMessage(), out);
+					} catch (RuntimeException e) {
+						writeError("Internal error: " + e, out);
+					}
+					out.flush();
+				}
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// the client went away
+		}
+	}
+
+	private void handle(String line, InputStream in, OutputStream out) throws IOException, FormattingException {
+		if (line.equals("PING")) {
+			out.write("OK 0\n".getBytes("UTF-8"));
+			return;
+		}
+
+		boolean range = line.startsWith("RANGE ");
+
+		if (!range && !line.startsWith("FORMAT ")) {
+			throw new FormattingException("Unknown request: " + line);
+		}
+
+		// the path of the specification comes last, since it may contain spaces
+		String[] words = line.split(" ", range ? 5 : 3);
+		int offset = -1;
+		int length = -1;
+		int size;
+
+		if (words.length != (range ? 5 : 3)) {
+			throw new BadRequestException("Malformed request: " + line);
+		}
+
+		try {
+			if (range) {
+				offset = Integer.parseInt(words[1]);
+				length = Integer.parseInt(words[2]);
+			}
+			size = Integer.parseInt(words[words.length - 2]);
+		} catch (NumberFormatException e) {
+			throw new BadRequestException("Malformed request: " + line);
+		}
+
+		if (size < 0 || size > MAX_SOURCE_BYTES) {
+			throw new BadRequestException("Invalid source size " + size + ", the maximum is " + MAX_SOURCE_BYTES);
+		}
+
+		byte[] bytes = new byte[size];
+		new DataInputStream(in).readFully(bytes);
+		String source = new String(bytes, "UTF-8");
+
+		// offset + length may overflow
+		if (range && (offset < 0 || length < 0 || offset > source.length() || length > source.length() - offset)) {
+			throw new FormattingException("Range outside of the source: " + line);
+		}
+
+		BatchFormatter formatter = getFormatter(words[words.length - 1]);
+
+		if (range) {
+			BoxTransformer.Edit edit = formatter.formatRange(source, offset, length);
+
+			if (edit != null) {
+				byte[] replacement = edit.getText().getBytes("UTF-8");
+
+				out.write(("EDIT " + edit.getOffset() + " " + edit.getLength() + " " + replacement.length + "\n").getBytes("UTF-8"));
+				out.write(replacement);
+				return;
+			}
+		}
+
+		String formatted = formatter.format(source);
+
+		if (!range) {
+			byte[] result = formatted.getBytes("UTF-8");
+
+			out.write(("OK " + result.length + "\n").getBytes("UTF-8"));
+			out.write(result);
+		} else {
+			writeEdit(source, formatted, offset, length, out);
+		}
+	}
+
+	private static void writeEdit(String source, String formatted, int offset, int length, OutputStream out) throws IOException {
+		int max = Math.min(source.length(), formatted.length());
+		int prefix = 0;
+
+		while (prefix < max && source.charAt(prefix) == formatted.charAt(prefix)) {
+			prefix++;
+		}
+
+		int suffix = 0;
+
+		while (suffix < max - prefix && source.charAt(source.length() - 1 - suffix) == formatted.charAt(formatted.length() - 1 - suffix)) {
+			suffix++;
+		}
+
+		int editLength = source.length() - prefix - suffix;
+		byte[] replacement = formatted.substring(prefix, formatted.length() - suffix).getBytes("UTF-8");
+
+		if (prefix > offset + length || prefix + editLength < offset) {
+			out.write(("EDIT " + offset + " 0 0\n").getBytes("UTF-8"));
+		} else {
+			out.write(("EDIT " + prefix + " " + editLength + " " + replacement.length + "\n").getBytes("UTF-8"));
+			out.write(replacement);
+		}
+	}
+
+	private static void writeError(String message, OutputStream out) throws IOException {
+		out.write(("ERROR " + String.valueOf(message).replace('\n', ' ') + "\n").getBytes("UTF-8"));
+	}
+
+	/**
+	 * Loads a specification, or reuses it if its file did not change. The
+	 * specification is loaded without holding the lock on the loaded ones, so
+	 * a slow load does not hold up requests for other specifications.
+	 */
+	private BatchFormatter getFormatter(String specPath) throws FormattingException {
+		File file = getSpecificationFile(specPath);
+		String key = file.getPath();
+		LoadedSpecification loaded;
+
+		synchronized (fSpecifications) {
+			loaded = fSpecifications.get(key);
+		}
+
+		if (loaded != null && loaded.isCurrent(file)) {
+			return loaded.fFormatter;
+		}
+
+		try {
+			loaded = new LoadedSpecification(file);
+		} catch (IOException e) {
+			throw new FormattingException("Could not read " + specPath + ": " + e.getMessage(), e);
+		} catch (ParseException e) {
+			throw new FormattingException("Error in specification " + specPath + ": " + e.getMessage(), e);
+		}
+
+		synchronized (fSpecifications) {
+			fSpecifications.put(key, loaded);
+		}
+		return loaded.fFormatter;
+	}
+
+	/**
+	 * @return the canonical file of a specification path
+	 * @throws FormattingException
+	 *             if the path is relative, not a file or outside of the
+	 *             folders the daemon may read from
+	 */
+	private File getSpecificationFile(String specPath) throws FormattingException {
+		File file = new File(specPath);
+
+		if (!file.isAbsolute()) {
+			throw new FormattingException("No specification at " + specPath);
+		}
+
+		try {
+			file = file.getCanonicalFile();
+		} catch (IOException e) {
+			throw new FormattingException("No specification at " + specPath);
+		}
+
+		if (!isAllowed(file)) {
+			throw new FormattingException("Not allowed to read " + specPath);
+		}
+		if (!file.isFile()) {
+			throw new FormattingException("No specification at " + specPath);
+		}
+		return file;
+	}
+
+	private boolean isAllowed(File canonical) {
+		for (String root : fRoots) {
+			if (canonical.getPath().startsWith(root)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a line of ASCII text without the line terminator, or null at the
+	 *         end of the stream
+	 * @throws BadRequestException
+	 *             if the line is longer than {@link #MAX_LINE}
+	 */
+	private static String readLine(InputStream in) throws IOException, BadRequestException {
+		StringBuilder line = new StringBuilder();
+		int c;
+
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return line.length() > 0 ? line.toString() : null;
+			}
+			if (c != '\r') {
+				if (line.length() == MAX_LINE) {
+					throw new BadRequestException("Request line longer than " + MAX_LINE + " characters");
+				}
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * A request after which the rest of the stream can not be read as
+	 * requests anymore.
+	 */
+	private static class BadRequestException extends FormattingException {
+		private static final long serialVersionUID = 1L;
+
+		public BadRequestException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A specification with the time stamp of the file it was loaded from.
+	 */
+	private static class LoadedSpecification {
+		private final long fLastModified;
+
+		private final long fLength;
+
+		private final BatchFormatter fFormatter;
+
+		public LoadedSpecification(File file) throws IOException, ParseException, FormattingException {
+			fLastModified = file.lastModified();
+			fLength = file.length();
+			// every specification gets its own binding: a binding holds one
+			// language at a time
+			fFormatter = new BatchFormatter(new Path(file.getAbsolutePath()), FormatApplication.read(file, "UTF-8"), new LanguageBinding());
+		}
+
+		public boolean isCurrent(File file) {
+			return file.lastModified() == fLastModified && file.length() == fLength;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.batch;
+
+/**
+ * Thrown when a source file can not be formatted, because it does not parse
+ * or because its Box expression can not be rendered.
+ */
+public class FormattingException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public FormattingException(String message) {
+		super(message);
+	}
+
+	public FormattingException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
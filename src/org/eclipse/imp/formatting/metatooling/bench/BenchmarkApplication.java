@@ -0,0 +1,182 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.runtime.Path;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.eclipse.imp.formatting.metatooling.LanguageBinding;
+import org.eclipse.imp.services.IASTAdapter;
+
+/**
+ * Runs the {@link PipelineBenchmark} on a specification, or with -scaling the
+ * {@link ScalingBenchmark} on generated ones. Registered as the application
+ * <code>org.eclipse.imp.formatting.metatooling.benchmark</code>:
+ *
+ * <pre>
+ * eclipse -nosplash -application org.eclipse.imp.formatting.metatooling.benchmark
+ *     -spec java.fsp [-specs 1,4,16] [-inputs 1,4,16] [-warmup n] [-iterations n] [-external]
+ * eclipse -nosplash -application org.eclipse.imp.formatting.metatooling.benchmark
+ *     -scaling -language name [-sizes 16,64,256] [-options n] [-depth n] [-seed n]
+ *     [-limit 1.5] [-write dir] [-warmup n] [-iterations n]
+ * </pre>
+ *
+ * The specification must name an installed language; one made from
+ * templates/formatter.fsp by the new specification wizard will do, and the
+ * generated specifications need a language with the syntax of that
+ * template. The results are printed as tab separated lines. The exit code of
+ * a scaling run is 1 if a measure grew faster than the limit.
+ */
+public class BenchmarkApplication implements IApplication {
+	private static final Pattern LANGUAGE_ELEMENT = Pattern.compile("<language>([a-zA-Z0-9_]+)</language>");
+
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		File spec = null;
+		int[] specScales = new int[] { 1, 4, 16 };
+		int[] inputScales = new int[] { 1, 4, 16 };
+		int warmup = 5;
+		int iterations = 10;
+		boolean external = false;
+		boolean scaling = false;
+		String language = null;
+		int[] sizes = new int[] { 16, 64, 256 };
+		int options = 8;
+		int depth = 2;
+		long seed = 0;
+		double limit = 1.5;
+		File dir = null;
+
+		if (args == null) {
+			args = new String[0];
+		}
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-spec")) {
+					spec = new File(args[++i]);
+				} else if (args[i].equals("-specs")) {
+					specScales = PipelineBenchmark.parseScales(args[++i]);
+				} else if (args[i].equals("-inputs")) {
+					inputScales = PipelineBenchmark.parseScales(args[++i]);
+				} else if (args[i].equals("-warmup")) {
+					warmup = Math.max(0, Integer.parseInt(args[++i]));
+				} else if (args[i].equals("-iterations")) {
+					iterations = Math.max(1, Integer.parseInt(args[++i]));
+				} else if (args[i].equals("-external")) {
+					external = true;
+				} else if (args[i].equals("-scaling")) {
+					scaling = true;
+				} else if (args[i].equals("-language")) {
+					language = args[++i];
+				} else if (args[i].equals("-sizes")) {
+					sizes = PipelineBenchmark.parseScales(args[++i]);
+				} else if (args[i].equals("-options")) {
+					options = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-depth")) {
+					depth = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed")) {
+					seed = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-limit")) {
+					limit = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-write")) {
+					dir = new File(args[++i]);
+				} else {
+					return usage("Unknown argument " + args[i]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return usage("Missing value for " + args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			return usage(e.getMessage());
+		}
+
+		if (scaling ? language == null : spec == null) {
+			return usage(null);
+		}
+
+		context.applicationRunning();
+
+		if (scaling) {
+			IASTAdapter adapter = new LanguageBinding().getASTAdapter(language);
+
+			if (adapter == null) {
+				System.err.println("Language " + language + " has no AST adapter");
+				return Integer.valueOf(1);
+			}
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+				System.err.println("Could not create " + dir);
+				return Integer.valueOf(1);
+			}
+
+			int flagged = new ScalingBenchmark(language, adapter, options, depth, seed, warmup, iterations, limit).run(sizes, dir, System.out);
+
+			return flagged > 0 ? Integer.valueOf(1) : EXIT_OK;
+		}
+
+		String specText = read(spec);
+		Matcher m = LANGUAGE_ELEMENT.matcher(specText);
+
+		if (!m.find()) {
+			System.err.println("The specification does not name a language");
+			return Integer.valueOf(1);
+		}
+
+		IASTAdapter adapter = new LanguageBinding().getASTAdapter(m.group(1));
+
+		if (adapter == null) {
+			System.err.println("Language " + m.group(1) + " has no AST adapter");
+			return Integer.valueOf(1);
+		}
+
+		new PipelineBenchmark(new Path(spec.getAbsolutePath()), specText, adapter, warmup, iterations, external).run(specScales, inputScales, System.out);
+		return EXIT_OK;
+	}
+
+	public void stop() {
+		// the benchmark is short lived and has nothing to release
+	}
+
+	private static String read(File file) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+		try {
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[8192];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				text.append(buffer, 0, read);
+			}
+			return text.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Integer usage(String message) {
+		if (message != null) {
+			System.err.println(message);
+		}
+		System.err.println("usage: -spec <file.fsp> [-specs <n,...>] [-inputs <n,...>] [-warmup <n>] [-iterations <n>] [-external]");
+		System.err.println("   or: -scaling -language <name> [-sizes <n,...>] [-options <n>] [-depth <n>] [-seed <n>] [-limit <x>] [-write <dir>] [-warmup <n>] [-iterations <n>]");
+		return Integer.valueOf(2);
+	}
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.imp.box.builders.BoxFactory;
+import org.eclipse.imp.box.interpreter.BoxInterpreter;
+import org.eclipse.imp.box.parser.BoxParseController;
+import org.eclipse.imp.box.parser.Ast.IBox;
+import org.eclipse.imp.formatting.metatooling.transform.BoxTransformer;
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.SpaceOptionBinder;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.formatting.spec.Transformer;
+import org.eclipse.imp.services.IASTAdapter;
+import org.eclipse.imp.utils.SavingMessageHandler;
+
+/**
+ * Times every stage of the formatting pipeline on its own, for one
+ * specification scaled to a number of sizes and one example scaled to a
+ * number of sizes, such that a slow format can be blamed on a stage.
+ *
+ * A specification of scale n has its rules n times: the copies come after
+ * the originals, so they never change the outcome, but every node that no
+ * rule matches is tried against all of them. An input of scale n is the
+ * example of the specification n times, one after the other, which must be
+ * valid in the language.
+ *
+ * Every stage runs a number of warm-up operations, which are not measured,
+ * and then a number of measured ones. The inputs of a stage are prepared by
+ * the stages before it, outside of the measurement.
+ */
+public class PipelineBenchmark {
+	private static final Pattern RULES = Pattern.compile("(<rules>)(.*)(</rules>)", Pattern.DOTALL);
+
+	private final IPath fSpecPath;
+
+	private final String fSpecText;
+
+	private final IASTAdapter fAdapter;
+
+	private final int fWarmup;
+
+	private final int fIterations;
+
+	private final boolean fExternal;
+
+	/**
+	 * @param external
+	 *            whether to time BoxFactory.box2Text as well, which starts
+	 *            external processes and is much slower than the other stages
+	 */
+	public PipelineBenchmark(IPath specPath, String specText, IASTAdapter adapter, int warmup, int iterations, boolean external) {
+		fSpecPath = specPath;
+		fSpecText = specText;
+		fAdapter = adapter;
+		fWarmup = warmup;
+		fIterations = iterations;
+		fExternal = external;
+	}
+
+	/**
+	 * Runs all stages for every combination of specification and input scale,
+	 * and prints one line per stage.
+	 */
+	public void run(int[] specScales, int[] inputScales, PrintStream out) throws Exception {
+		out.println("stage\tspec\tinput\trules\tchars\tops\tmean us/op\tmin us/op");
+
+		for (int specScale : specScales) {
+			final String specText = scaleSpecification(fSpecText, specScale);
+			final Specification spec = newParser().load(specText);
+			final List<String> boxes = getBoxStrings(spec);
+
+			measure(out, "load", specScale, 0, boxes.size(), specText.length(), new Stage() {
+				public void run() throws Exception {
+					newParser().load(specText);
+				}
+			});
+
+			final SpaceOptionBinder binder = new SpaceOptionBinder(spec);
+
+			measure(out, "bind", specScale, 0, boxes.size(), specText.length(), new Stage() {
+				public void run() throws Exception {
+					for (String box : boxes) {
+						binder.bind(box);
+					}
+				}
+			});
+
+			for (int inputScale : inputScales) {
+				runInput(out, spec, specScale, inputScale, boxes.size());
+			}
+		}
+	}
+
+	private void runInput(PrintStream out, final Specification spec, int specScale, int inputScale, int rules) throws Exception {
+		final String input = scaleInput(spec.getExample(), inputScale);
+		final Parser parser = spec.getParser();
+		final Object ast = parser.parseObject(input);
+
+		if (ast == null) {
+			out.println("# the example of scale " + inputScale + " does not parse: " + ((SavingMessageHandler) parser.getMessageHandler()).getConcatenatedMessages());
+			return;
+		}
+
+		int chars = input.length();
+
+		measure(out, "parse", specScale, inputScale, rules, chars, new Stage() {
+			public void run() throws Exception {
+				parser.parseObject(input);
+			}
+		});
+
+		measure(out, "transform", specScale, inputScale, rules, chars, new Stage() {
+			public void run() throws Exception {
+				new Transformer(spec, fAdapter).transformToBox(input, ast);
+			}
+		});
+
+		measure(out, "boxtransform", specScale, inputScale, rules, chars, new Stage() {
+			public void run() throws Exception {
+				new BoxTransformer(spec, fAdapter).transformToBox(input, ast);
+			}
+		});
+
+		final String box = new Transformer(spec, fAdapter).transformToBox(input, ast);
+
+		measure(out, "parsebox", specScale, inputScale, rules, chars, new Stage() {
+			public void run() throws Exception {
+				BoxParseController.parseBox(box);
+			}
+		});
+
+		final IBox ibox = BoxParseController.parseBox(box);
+
+		if (ibox == null) {
+			out.println("# the Box expression of scale " + inputScale + " does not parse");
+			return;
+		}
+
+		measure(out, "interpret", specScale, inputScale, rules, chars, new Stage() {
+			public void run() throws Exception {
+				new BoxInterpreter().interpret(ibox);
+			}
+		});
+
+		if (fExternal) {
+			measure(out, "box2text", specScale, inputScale, rules, chars, new Stage() {
+				public void run() throws Exception {
+					BoxFactory.box2Text(box, new SavingMessageHandler());
+				}
+			});
+		}
+	}
+
+	private void measure(PrintStream out, String name, int specScale, int inputScale, int rules, int chars, Stage stage) throws Exception {
+		long[] times = time(stage, fWarmup, fIterations);
+		StringBuilder line = new StringBuilder();
+
+		line.append(name).append('\t').append(specScale).append('\t').append(inputScale > 0 ? String.valueOf(inputScale) : "-");
+		line.append('\t').append(rules).append('\t').append(chars).append('\t').append(fIterations);
+		line.append('\t').append(times[0] / 1000).append('\t').append(times[1] / 1000);
+		out.println(line);
+	}
+
+	/**
+	 * Runs the warm-up operations of a stage, and then the measured ones.
+	 *
+	 * @return the mean and the minimum time of an operation, in nanoseconds
+	 */
+	static long[] time(Stage stage, int warmup, int iterations) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			stage.run();
+		}
+
+		long total = 0;
+		long min = Long.MAX_VALUE;
+
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			stage.run();
+			long time = System.nanoTime() - start;
+
+			total += time;
+			min = Math.min(min, time);
+		}
+
+		return new long[] { total / Math.max(1, iterations), iterations > 0 ? min : 0 };
+	}
+
+	private Parser newParser() {
+		return new Parser(fSpecPath, null, new SavingMessageHandler());
+	}
+
+	/**
+	 * @return the specification with its rules the given number of times, or
+	 *         the specification itself if it has no rules element
+	 */
+	static String scaleSpecification(String specText, int scale) {
+		Matcher m = RULES.matcher(specText);
+
+		if (!m.find()) {
+			return specText;
+		}
+
+		StringBuilder rules = new StringBuilder();
+
+		for (int i = 0; i < scale; i++) {
+			rules.append(m.group(2));
+		}
+		return specText.substring(0, m.start(2)) + rules + specText.substring(m.end(2));
+	}
+
+	/**
+	 * @return the example the given number of times, on separate lines
+	 */
+	static String scaleInput(String example, int scale) {
+		StringBuilder input = new StringBuilder();
+
+		for (int i = 0; i < scale; i++) {
+			input.append(example);
+			if (!example.endsWith("\n")) {
+				input.append('\n');
+			}
+		}
+		return input.toString();
+	}
+
+	private static List<String> getBoxStrings(Specification spec) {
+		List<String> boxes = new ArrayList<String>();
+		Iterator<Item> iter = spec.ruleIterator();
+
+		while (iter.hasNext()) {
+			Item item = iter.next();
+
+			if (item instanceof Rule && ((Rule) item).getBoxString() != null) {
+				boxes.add(((Rule) item).getBoxString());
+			}
+		}
+		return boxes;
+	}
+
+	/**
+	 * @return the comma separated numbers, sorted
+	 */
+	static int[] parseScales(String list) throws NumberFormatException {
+		String[] words = list.split(",");
+		int[] scales = new int[words.length];
+
+		for (int i = 0; i < words.length; i++) {
+			scales[i] = Math.max(1, Integer.parseInt(words[i].trim()));
+		}
+		Arrays.sort(scales);
+		return scales;
+	}
+
+	/**
+	 * One operation of a stage.
+	 */
+	interface Stage {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.imp.formatting.editor.ParserFactory;
+import org.eclipse.imp.formatting.editor.ParserPool;
+import org.eclipse.imp.formatting.editor.PreviewCache;
+import org.eclipse.imp.formatting.editor.RuleValidator;
+import org.eclipse.imp.formatting.metatooling.BoxRenderer;
+import org.eclipse.imp.formatting.metatooling.transform.BoxTransformer;
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.services.IASTAdapter;
+import org.eclipse.imp.utils.SavingMessageHandler;
+
+/**
+ * Measures how loading, validating and formatting grow with the size of the
+ * specification and of the input, on specifications and examples made by a
+ * {@link SpecificationGenerator}. Size n means n rules and an example of n
+ * functions.
+ *
+ * For every two consecutive sizes the growth exponent of every measure is
+ * printed: 1 is linear, 2 quadratic. An exponent above the limit is flagged,
+ * such that a super-linear regression stands out in the output.
+ */
+public class ScalingBenchmark {
+	private final String fLanguage;
+
+	private final IASTAdapter fAdapter;
+
+	private final int fOptions;
+
+	private final int fDepth;
+
+	private final long fSeed;
+
+	private final int fWarmup;
+
+	private final int fIterations;
+
+	private final double fLimit;
+
+	/**
+	 * @param options
+	 *            the number of space options, the same for every size
+	 * @param depth
+	 *            the pattern depth, the same for every size
+	 * @param limit
+	 *            the growth exponent above which a measure is flagged
+	 */
+	public ScalingBenchmark(String language, IASTAdapter adapter, int options, int depth, long seed, int warmup, int iterations, double limit) {
+		fLanguage = language;
+		fAdapter = adapter;
+		fOptions = options;
+		fDepth = depth;
+		fSeed = seed;
+		fWarmup = warmup;
+		fIterations = iterations;
+		fLimit = limit;
+	}
+
+	/**
+	 * @param sizes
+	 *            the sizes, in increasing order
+	 * @param dir
+	 *            where to write the generated specifications, or null
+	 * @return the number of flagged measures
+	 */
+	public int run(int[] sizes, File dir, PrintStream out) throws Exception {
+		String[] measures = { "load", "validate", "format" };
+		long[][] times = new long[sizes.length][];
+		int flagged = 0;
+
+		out.println("measure\tsize\tmean us/op\texponent");
+
+		for (int s = 0; s < sizes.length; s++) {
+			times[s] = measure(sizes[s], dir);
+
+			for (int m = 0; m < measures.length; m++) {
+				StringBuilder line = new StringBuilder();
+
+				line.append(measures[m]).append('\t').append(sizes[s]).append('\t').append(times[s][m] / 1000);
+
+				if (s > 0 && times[s - 1][m] > 0 && times[s][m] > 0 && sizes[s] > sizes[s - 1]) {
+					double exponent = Math.log((double) times[s][m] / times[s - 1][m]) / Math.log((double) sizes[s] / sizes[s - 1]);
+
+					line.append('\t').append(Math.round(exponent * 100) / 100.0);
+					if (exponent > fLimit) {
+						line.append("\tSUPER-LINEAR");
+						flagged++;
+					}
+				}
+				out.println(line);
+			}
+		}
+		return flagged;
+	}
+
+	/**
+	 * @return the mean times of loading, validating and formatting
+	 */
+	private long[] measure(int size, File dir) throws Exception {
+		final IPath path = dir != null ? new Path(new File(dir, "generated-" + size + ".fsp").getAbsolutePath()) : new Path("generated-" + size + ".fsp");
+		SpecificationGenerator generator = new SpecificationGenerator(size, fOptions, fDepth, fSeed);
+		final String text = generator.generateText(fLanguage, newParser(path), size);
+
+		if (dir != null) {
+			write(path.toFile(), text);
+		}
+
+		final Parser parser = newParser(path);
+		final Specification spec = parser.load(text);
+		final List<Rule> rules = getRules(spec);
+		final String example = spec.getExample();
+		final ParserPool parsers = new ParserPool(new ParserFactory() {
+			public Parser newParser() {
+				Parser p = ScalingBenchmark.newParser(path);
+
+				p.setLanguage(fLanguage);
+				return p;
+			}
+		});
+
+		long load = PipelineBenchmark.time(new PipelineBenchmark.Stage() {
+			public void run() throws Exception {
+				newParser(path).load(text);
+			}
+		}, fWarmup, fIterations)[0];
+
+		long validate = PipelineBenchmark.time(new PipelineBenchmark.Stage() {
+			public void run() throws Exception {
+				// a new cache every time, or only the first run would format
+				RuleValidator validator = new RuleValidator(parsers, new PreviewCache());
+
+				for (Rule rule : rules) {
+					validator.validate(RuleValidator.prepare(spec, rule, true));
+				}
+			}
+		}, fWarmup, fIterations)[0];
+
+		long format = PipelineBenchmark.time(new PipelineBenchmark.Stage() {
+			public void run() throws Exception {
+				Object ast = parser.parseObject(example);
+
+				if (ast == null) {
+					throw new IllegalStateException("The generated example does not parse: " + ((SavingMessageHandler) parser.getMessageHandler()).getConcatenatedMessages());
+				}
+				BoxRenderer.box2Text(new BoxTransformer(spec, fAdapter).transformToBox(example, ast));
+			}
+		}, fWarmup, fIterations)[0];
+
+		return new long[] { load, validate, format };
+	}
+
+	private static Parser newParser(IPath path) {
+		return new Parser(path, null, new SavingMessageHandler());
+	}
+
+	private static List<Rule> getRules(Specification spec) {
+		List<Rule> rules = new ArrayList<Rule>();
+		Iterator<Item> iter = spec.ruleIterator();
+
+		while (iter.hasNext()) {
+			Item item = iter.next();
+
+			if (item instanceof Rule) {
+				rules.add((Rule) item);
+			}
+		}
+		return rules;
+	}
+
+	private static void write(File file, String text) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.bench;
+
+import java.util.Random;
+
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Separator;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.formatting.spec.Unparser;
+
+/**
+ * Generates formatting specifications and example programs of any size, for
+ * the small imperative language of templates/formatter.fsp: functions over
+ * int, with if, while, return, assignments and binary expressions.
+ *
+ * A generated specification has the statement rules of the template, and
+ * then rules for chains of binary operators with as many operators as the
+ * pattern depth, like <code>$expr0 + $term0 * $term1</code>. Every operator
+ * rule refers to one of the space options, named <code>$sa</code>,
+ * <code>$sb</code>, and so on. The same seed always gives the same
+ * specification and the same example.
+ */
+public class SpecificationGenerator {
+	private static final String[] OPERATORS = { "+", "-", "*", "/", "==", "!=", "<", ">" };
+
+	private static final String[] STATEMENT_RULES = {
+		"V [ H [ \"if\" H hs=0 [ \"(\" \"$expr0\" \")\" ] \"{\" ] I [ V [ \"$stats0\" ] ] \"}\" ]", "if ($expr0) {\n  $stats0\n}",
+		"V [ H [ \"while\" H hs=0 [ \"(\" \"$expr0\" \")\" ] \"{\" ] I [ V [ \"$stats0\" ] ] \"}\" ]", "while ($expr0) {\n  $stats0\n}",
+		"H [ \"return\" H hs=0 [ \"$expr0\" \";\" ] ]", "return $expr0;",
+		"H [ \"$id0\" \"=\" H hs=0 [ HV [ \"$expr0\" ] \";\" ] ]", "$id0 = $expr0;",
+		"V [ H [ \"$type0\" H hs=0 [ \"$id0\" \"(\" \"$params0\" \")\" ] \"{\" ] I [ V [ \"$stats0\" ] ] \"}\" ]", "$type0 $id0($params0) {\n  $stats0\n}",
+	};
+
+	private final int fRules;
+
+	private final int fOptions;
+
+	private final int fDepth;
+
+	private final long fSeed;
+
+	/**
+	 * @param rules
+	 *            the number of rules, at least the number of statement rules
+	 * @param options
+	 *            the number of space options
+	 * @param depth
+	 *            the number of binary operators in the pattern of an
+	 *            operator rule
+	 */
+	public SpecificationGenerator(int rules, int options, int depth, long seed) {
+		fRules = Math.max(rules, STATEMENT_RULES.length / 2);
+		fOptions = Math.max(0, options);
+		fDepth = Math.max(1, depth);
+		fSeed = seed;
+	}
+
+	/**
+	 * @param language
+	 *            the name of the language, which must have the syntax of the
+	 *            template
+	 * @param functions
+	 *            the number of functions in the example
+	 * @return the specification, which has not been validated: the patterns of
+	 *         its rules have no AST yet
+	 */
+	public Specification generate(String language, Parser parser, int functions) {
+		Specification spec = new Specification(language, parser);
+		Random random = new Random(fSeed);
+
+		for (int i = 0; i < fOptions; i++) {
+			spec.setSpaceOption(getOptionName(i), Integer.valueOf(random.nextInt(3)));
+		}
+
+		Separator statements = new Separator();
+		statements.setLabel("Statements");
+		spec.addRule(statements);
+
+		for (int i = 0; i < STATEMENT_RULES.length; i += 2) {
+			spec.addRule(newRule(STATEMENT_RULES[i], STATEMENT_RULES[i + 1]));
+		}
+
+		Separator expressions = new Separator();
+		expressions.setLabel("Expressions");
+		spec.addRule(expressions);
+
+		for (int i = STATEMENT_RULES.length / 2; i < fRules; i++) {
+			spec.addRule(newOperatorRule(i, random));
+		}
+
+		spec.setExample(generateExample(functions));
+		return spec;
+	}
+
+	/**
+	 * @return the text of a generated specification, as the specification
+	 *         editor saves it
+	 */
+	public String generateText(String language, Parser parser, int functions) {
+		return new Unparser().unparse(generate(language, parser, functions));
+	}
+
+	/**
+	 * @return an example program with the given number of functions, which
+	 *         uses operator chains of the pattern depth
+	 */
+	public String generateExample(int functions) {
+		Random random = new Random(fSeed);
+		StringBuilder b = new StringBuilder();
+
+		for (int f = 0; f < functions; f++) {
+			b.append("int f").append(f).append(" ( int n ) {\n");
+			b.append("  if ( ").append(chain(random, "n")).append(" ) {\n");
+			b.append("    return ").append(chain(random, "1")).append(" ;\n");
+			b.append("  }\n");
+			b.append("  while ( n > 0 ) {\n");
+			b.append("    n = ").append(chain(random, "n")).append(" ;\n");
+			b.append("  }\n");
+			b.append("  return f").append(f).append(" ( ").append(chain(random, "n")).append(" ) ;\n");
+			b.append("}\n\n");
+		}
+		return b.toString();
+	}
+
+	private String chain(Random random, String first) {
+		StringBuilder b = new StringBuilder(first);
+
+		for (int i = 0; i < fDepth; i++) {
+			b.append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ').append(random.nextInt(10));
+		}
+		return b.toString();
+	}
+
+	private Rule newOperatorRule(int index, Random random) {
+		StringBuilder box = new StringBuilder();
+		StringBuilder preview = new StringBuilder("$expr0");
+		String option = fOptions > 0 ? "$" + getOptionName(index % fOptions) : "1";
+
+		box.append("H hs=").append(option).append(" [ \"$expr0\"");
+
+		for (int i = 0; i < fDepth; i++) {
+			int op = random.nextInt(OPERATORS.length);
+
+			box.append(" \"").append(OPERATORS[op]).append("\" \"$term").append(i).append('"');
+			preview.append(' ').append(OPERATORS[op]).append(" $term").append(i);
+		}
+		box.append(" ]");
+
+		return newRule(box.toString(), preview.toString());
+	}
+
+	private static Rule newRule(String box, String pattern) {
+		Rule rule = new Rule();
+
+		rule.setBoxString(box);
+		rule.setPatternString(pattern);
+		return rule;
+	}
+
+	/**
+	 * @return a name of letters only, as option references in Box strings
+	 *         have: sa, sb, ..., sz, sba, ...
+	 */
+	static String getOptionName(int i) {
+		StringBuilder name = new StringBuilder();
+
+		do {
+			name.insert(0, (char) ('a' + i % 26));
+			i = i / 26;
+		} while (i > 0);
+
+		return "s" + name;
+	}
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.imp.box.builders.BoxException;
+
+/**
+ * An immutable Box expression: a string literal, an operator with options
+ * and children, or, in the Box expression of a rule, a hole for the meta
+ * variable named by a literal like <code>"$expr0"</code>.
+ *
+ * Terms share their subterms, so filling the holes of a rule with the terms
+ * of the nodes bound to its meta variables costs time in the size of the
+ * rule, not in the size of the result. The text of a whole tree is written
+ * once, in linear time, by {@link #write(StringBuilder)}.
+ */
+public abstract class BoxTerm {
+	/**
+	 * @return true iff this term or one of its subterms is a hole
+	 */
+	public abstract boolean hasHoles();
+
+	/**
+	 * @return this term with its holes replaced by the terms bound to their
+	 *         names; holes without a binding are left alone
+	 */
+	public abstract BoxTerm fill(Map<String, BoxTerm> bindings);
+
+	/**
+	 * Appends the Box syntax of this term.
+	 */
+	public abstract void write(StringBuilder b);
+
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		write(b);
+		return b.toString();
+	}
+
+	/**
+	 * @return a literal for the given text, quoted and escaped
+	 */
+	public static BoxTerm literal(String text) {
+		StringBuilder b = new StringBuilder(text.length() + 2);
+
+		b.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				b.append('\\');
+			}
+			b.append(c);
+		}
+		b.append('"');
+
+		return new Literal(b.toString());
+	}
+
+	/**
+	 * @return an operator term
+	 */
+	public static BoxTerm operator(String name, String[] options, List<BoxTerm> children) {
+		return new Operator(name, options, children.toArray(new BoxTerm[children.size()]));
+	}
+
+	/**
+	 * Parses a Box expression, such as the Box string of a rule. Literals of
+	 * the form <code>"$name"</code> become holes.
+	 *
+	 * @throws BoxException
+	 *             if the expression is not a single well-formed Box term
+	 */
+	public static BoxTerm parse(String boxString) throws BoxException {
+		Tokenizer tokens = new Tokenizer(boxString);
+		BoxTerm result = parseTerm(tokens);
+
+		if (tokens.next() != null) {
+			throw new BoxException("Expected the end of the Box expression", boxString, null);
+		}
+		return result;
+	}
+
+	private static BoxTerm parseTerm(Tokenizer tokens) throws BoxException {
+		String token = tokens.next();
+
+		if (token == null) {
+			throw new BoxException("Unexpected end of the Box expression", tokens.fInput, null);
+		}
+
+		if (token.charAt(0) == '"') {
+			if (token.length() > 2 && token.charAt(1) == '$' && token.indexOf('\\') == -1) {
+				return new Hole(token, token.substring(1, token.length() - 1));
+			}
+			return new Literal(token);
+		}
+
+		if (!Character.isLetter(token.charAt(0)) || token.indexOf('=') != -1) {
+			throw new BoxException("Expected a Box operator or a string, found " + token, tokens.fInput, null);
+		}
+
+		List<String> options = new ArrayList<String>();
+		String next;
+
+		while ((next = tokens.next()) != null && next.indexOf('=') != -1) {
+			options.add(next);
+		}
+
+		if (!"[".equals(next)) {
+			throw new BoxException("Expected [ after " + token, tokens.fInput, null);
+		}
+
+		List<BoxTerm> children = new ArrayList<BoxTerm>();
+
+		while (!"]".equals(tokens.peek())) {
+			children.add(parseTerm(tokens));
+		}
+		tokens.next();
+
+		return new Operator(token, options.toArray(new String[options.size()]), children.toArray(new BoxTerm[children.size()]));
+	}
+
+	private static class Literal extends BoxTerm {
+		/**
+		 * The literal as it appears in Box syntax, with quotes and escapes.
+		 */
+		private final String fToken;
+
+		public Literal(String token) {
+			fToken = token;
+		}
+
+		public boolean hasHoles() {
+			return false;
+		}
+
+		public BoxTerm fill(Map<String, BoxTerm> bindings) {
+			return this;
+		}
+
+		public void write(StringBuilder b) {
+			b.append(fToken);
+		}
+	}
+
+	private static class Hole extends BoxTerm {
+		private final String fToken;
+
+		private final String fName;
+
+		public Hole(String token, String name) {
+			fToken = token;
+			fName = name;
+		}
+
+		public boolean hasHoles() {
+			return true;
+		}
+
+		public BoxTerm fill(Map<String, BoxTerm> bindings) {
+			BoxTerm term = bindings.get(fName);
+
+			return term != null ? term : this;
+		}
+
+		public void write(StringBuilder b) {
+			b.append(fToken);
+		}
+	}
+
+	private static class Operator extends BoxTerm {
+		private final String fName;
+
+		private final String[] fOptions;
+
+		private final BoxTerm[] fChildren;
+
+		private final boolean fHasHoles;
+
+		public Operator(String name, String[] options, BoxTerm[] children) {
+			boolean holes = false;
+
+			for (int i = 0; i < children.length && !holes; i++) {
+				holes = children[i].hasHoles();
+			}
+
+			fName = name;
+			fOptions = options;
+			fChildren = children;
+			fHasHoles = holes;
+		}
+
+		public boolean hasHoles() {
+			return fHasHoles;
+		}
+
+		public BoxTerm fill(Map<String, BoxTerm> bindings) {
+			if (!fHasHoles) {
+				return this;
+			}
+
+			BoxTerm[] children = new BoxTerm[fChildren.length];
+
+			for (int i = 0; i < children.length; i++) {
+				children[i] = fChildren[i].fill(bindings);
+			}
+			return new Operator(fName, fOptions, children);
+		}
+
+		public void write(StringBuilder b) {
+			b.append(fName);
+			for (String option : fOptions) {
+				b.append(' ').append(option);
+			}
+			b.append(" [");
+			for (BoxTerm child : fChildren) {
+				b.append(' ');
+				child.write(b);
+			}
+			b.append(" ]");
+		}
+	}
+
+	/**
+	 * Splits Box syntax into strings, brackets, operator names and options.
+	 */
+	private static class Tokenizer {
+		private final String fInput;
+
+		private int fPos = 0;
+
+		private String fPeeked;
+
+		public Tokenizer(String input) {
+			fInput = input;
+		}
+
+		public String peek() throws BoxException {
+			if (fPeeked == null) {
+				fPeeked = read();
+			}
+			if (fPeeked == null) {
+				throw new BoxException("Unexpected end of the Box expression", fInput, null);
+			}
+			return fPeeked;
+		}
+
+		public String next() throws BoxException {
+			if (fPeeked != null) {
+				String token = fPeeked;
+				fPeeked = null;
+				return token;
+			}
+			return read();
+		}
+
+		private String read() throws BoxException {
+			while (fPos < fInput.length() && Character.isWhitespace(fInput.charAt(fPos))) {
+				fPos++;
+			}
+
+			if (fPos == fInput.length()) {
+				return null;
+			}
+
+			int start = fPos;
+			char c = fInput.charAt(fPos++);
+
+			if (c == '[' || c == ']') {
+				return String.valueOf(c);
+			}
+
+			if (c == '"') {
+				while (fPos < fInput.length() && fInput.charAt(fPos) != '"') {
+					if (fInput.charAt(fPos) == '\\') {
+						fPos++;
+					}
+					fPos++;
+				}
+				if (fPos >= fInput.length()) {
+					throw new BoxException("Unterminated string in Box expression", fInput, null);
+				}
+				fPos++;
+				return fInput.substring(start, fPos);
+			}
+
+			while (fPos < fInput.length()) {
+				c = fInput.charAt(fPos);
+
+				if (Character.isWhitespace(c) || c == '[' || c == ']' || c == '"') {
+					break;
+				}
+				fPos++;
+			}
+			return fInput.substring(start, fPos);
+		}
+	}
+}
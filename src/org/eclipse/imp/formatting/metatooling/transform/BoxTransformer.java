@@ -0,0 +1,495 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.imp.box.builders.BoxException;
+import org.eclipse.imp.formatting.metatooling.Activator;
+import org.eclipse.imp.formatting.metatooling.BoxRenderer;
+import org.eclipse.imp.formatting.metatooling.Metrics;
+import org.eclipse.imp.formatting.spec.SpaceOptionBinder;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.formatting.spec.Transformer;
+import org.eclipse.imp.services.IASTAdapter;
+
+/**
+ * Translates an AST to Box with the same outcome as the left-to-right,
+ * bottom-up traversal of the Transformer of the formatting plugin, but
+ * building {@link BoxTerm} trees instead of strings.
+ *
+ * The Box expression of every rule is parsed once, when the transformer is
+ * created, into a template whose holes are its meta variables. A node that a
+ * rule matches becomes that template with its holes filled with the terms of
+ * the bound nodes; the terms are shared, not copied, so the cost of a node
+ * does not grow with the size of its subtree. A node that no rule matches
+ * becomes a horizontal box of the terms of its children and the source text
+ * between them. The Box text of the whole tree is written once, at the end.
+ *
+ * BoxTransformerTest checks that both transformers give the same text, for
+ * matched and unmatched nodes alike, on the example of the new
+ * specification template.
+ *
+ * A transformer remembers the subtrees it translated last, to reuse their
+ * terms when the same AST is translated again after an edit. It may be used
+ * from any thread.
+ */
+public class BoxTransformer {
+	private final RuleIndex fIndex;
+
+	private final IASTAdapter fAdapter;
+
+	private final Map<String, BoxTerm> fTemplates = new HashMap<String, BoxTerm>();
+
+	/**
+	 * The subtrees translated by the last transformation, by structural hash.
+	 */
+	private Map<Integer, List<Translated>> fPrevious;
+
+	/**
+	 * Must be called on the thread that owns the specification and its
+	 * parser.
+	 *
+	 * @throws BoxException
+	 *             if the Box expression of a rule can not be parsed
+	 */
+	public BoxTransformer(Specification spec, IASTAdapter adapter) throws BoxException {
+		SpaceOptionBinder binder = new SpaceOptionBinder(spec);
+
+		fAdapter = adapter;
+		fIndex = new RuleIndex(spec, adapter);
+
+		for (RuleIndex.IndexedRule rule : fIndex.getRules()) {
+			String box = rule.getBoxString();
+
+			if (box != null && !fTemplates.containsKey(box)) {
+				long start = Activator.getMetrics().start();
+				String bound = binder.bind(box);
+
+				Activator.getMetrics().stop(Metrics.OPTION_BIND, start);
+				fTemplates.put(box, BoxTerm.parse(bound));
+			}
+		}
+	}
+
+	/**
+	 * Translates an AST with a BoxTransformer, or with the Transformer of the
+	 * formatting plugin if a rule has a Box expression that can not be parsed
+	 * into a template. Must be called on the thread that owns the
+	 * specification and its parser.
+	 *
+	 * @return the Box string for the given AST of the given source text
+	 */
+	public static String transformToBox(Specification spec, IASTAdapter adapter, String source, Object ast) throws IOException, InterruptedException {
+		BoxTransformer transformer;
+
+		try {
+			transformer = new BoxTransformer(spec, adapter);
+		} catch (BoxException e) {
+			return new Transformer(spec, adapter).transformToBox(source, ast);
+		}
+		return transformer.transformToBox(source, ast);
+	}
+
+	/**
+	 * @return the Box expression for the given AST of the given source text
+	 */
+	public BoxTerm transform(String source, Object ast) {
+		long start = Activator.getMetrics().start();
+		Transformation t = new Transformation(source, getPrevious());
+		BoxTerm term = t.transform(ast);
+
+		setPrevious(t.getTranslated());
+		Activator.getMetrics().stop(Metrics.TRANSFORM, start);
+		return term;
+	}
+
+	/**
+	 * Formats the smallest node of the AST that covers the given range of the
+	 * source. The formatted text is indented like the first line of the node.
+	 *
+	 * @return the edit that replaces the text of that node by its formatted
+	 *         text
+	 * @throws BoxException
+	 *             if the Box expression of the node can not be rendered
+	 */
+	public Edit formatRange(String source, Object ast, int offset, int length) throws BoxException {
+		Object node = findCoveringNode(ast, offset, length);
+		// only the node is translated, so the terms of the last whole
+		// translation are kept for the next one
+		String text = BoxRenderer.box2Text(new Transformation(source, getPrevious()).transform(node).toString());
+
+		int nodeOffset = Math.max(0, Math.min(fAdapter.getOffset(node), source.length()));
+		int nodeLength = Math.max(0, Math.min(fAdapter.getLength(node), source.length() - nodeOffset));
+		int lineStart = source.lastIndexOf('\n', nodeOffset - 1) + 1;
+		int indentEnd = lineStart;
+
+		while (indentEnd < nodeOffset && Character.isWhitespace(source.charAt(indentEnd))) {
+			indentEnd++;
+		}
+
+		if (text.endsWith("\n")) {
+			text = text.substring(0, text.length() - 1);
+		}
+
+		String indent = source.substring(lineStart, indentEnd);
+		if (indent.length() > 0) {
+			text = text.replace("\n", "\n" + indent);
+		}
+
+		return new Edit(nodeOffset, nodeLength, text);
+	}
+
+	/**
+	 * @return the innermost node of the AST whose text covers the given range,
+	 *         or the root if there is none
+	 */
+	public Object findCoveringNode(Object ast, int offset, int length) {
+		Object node = ast;
+
+		while (true) {
+			Object inner = null;
+
+			for (Object child : fAdapter.getChildren(node)) {
+				int start = fAdapter.getOffset(child);
+
+				if (start <= offset && offset + length <= start + fAdapter.getLength(child)) {
+					inner = child;
+					break;
+				}
+			}
+
+			if (inner == null) {
+				return node;
+			}
+			node = inner;
+		}
+	}
+
+	private synchronized Map<Integer, List<Translated>> getPrevious() {
+		return fPrevious;
+	}
+
+	private synchronized void setPrevious(Map<Integer, List<Translated>> previous) {
+		fPrevious = previous;
+	}
+
+	/**
+	 * @return the Box string for the given AST of the given source text, as
+	 *         Transformer.transformToBox
+	 */
+	public String transformToBox(String source, Object ast) {
+		return transform(source, ast).toString();
+	}
+
+	/**
+	 * @return the term of a node that no rule matches: its text for a leaf, or
+	 *         the terms of its children with the text around them
+	 */
+	BoxTerm getDefault(Object node, Object[] children, List<BoxTerm> childTerms, String source) {
+		PatternMatcher matcher = fIndex.getMatcher();
+
+		if (children.length == 0) {
+			return BoxTerm.literal(normalize(matcher.getText(node, source)));
+		}
+
+		List<BoxTerm> parts = new ArrayList<BoxTerm>();
+		int offset = fAdapter.getOffset(node);
+
+		for (int i = 0; i < children.length; i++) {
+			addGap(source, offset, fAdapter.getOffset(children[i]), parts);
+			parts.add(childTerms.get(i));
+			offset = fAdapter.getOffset(children[i]) + fAdapter.getLength(children[i]);
+		}
+		addGap(source, offset, fAdapter.getOffset(node) + fAdapter.getLength(node), parts);
+
+		return BoxTerm.operator("H", new String[] { "hs=0" }, parts);
+	}
+
+	private static void addGap(String source, int from, int to, List<BoxTerm> parts) {
+		from = Math.max(0, Math.min(from, source.length()));
+		to = Math.max(from, Math.min(to, source.length()));
+
+		if (to > from) {
+			String gap = normalize(source.substring(from, to));
+
+			if (gap.length() > 0) {
+				parts.add(BoxTerm.literal(gap));
+			}
+		}
+	}
+
+	/**
+	 * @return the text with every run of white space replaced by one space
+	 */
+	private static String normalize(String text) {
+		return text.replaceAll("\\s+", " ");
+	}
+
+	RuleIndex getIndex() {
+		return fIndex;
+	}
+
+	/**
+	 * A translated AST: its text, and a cache of the structural hashes of its
+	 * nodes.
+	 */
+	private class Tree {
+		private final String fSource;
+
+		private final Map<Object, Integer> fHashes = new IdentityHashMap<Object, Integer>();
+
+		public Tree(String source) {
+			fSource = source;
+		}
+
+		/**
+		 * @return a hash of the types of a subtree, the text of its leaves and
+		 *         the text between its nodes; computed once per node
+		 */
+		public Integer hash(Object node) {
+			Integer hash = fHashes.get(node);
+
+			if (hash == null) {
+				Object[] children = fAdapter.getChildren(node);
+				int h = fAdapter.getTypeOf(node).hashCode();
+
+				if (children.length == 0) {
+					h = 31 * h + getText(node).hashCode();
+				} else {
+					for (int i = 0; i <= children.length; i++) {
+						h = 31 * h + getGap(node, children, i).hashCode();
+						if (i < children.length) {
+							h = 31 * h + hash(children[i]).intValue();
+						}
+					}
+				}
+
+				hash = Integer.valueOf(h);
+				fHashes.put(node, hash);
+			}
+			return hash;
+		}
+
+		public String getText(Object node) {
+			return fIndex.getMatcher().getText(node, fSource);
+		}
+
+		/**
+		 * @return the text before child i of a node, or after its last child
+		 */
+		public String getGap(Object node, Object[] children, int i) {
+			int from = i == 0 ? fAdapter.getOffset(node) : fAdapter.getOffset(children[i - 1]) + fAdapter.getLength(children[i - 1]);
+			int to = i == children.length ? fAdapter.getOffset(node) + fAdapter.getLength(node) : fAdapter.getOffset(children[i]);
+
+			from = Math.max(0, Math.min(from, fSource.length()));
+			to = Math.max(from, Math.min(to, fSource.length()));
+
+			return fSource.substring(from, to);
+		}
+	}
+
+	/**
+	 * A translated subtree, remembered to reuse its term for subtrees with the
+	 * same structure and text.
+	 */
+	private static class Translated {
+		private final Tree fTree;
+
+		private final Object fNode;
+
+		private final BoxTerm fTerm;
+
+		public Translated(Tree tree, Object node, BoxTerm term) {
+			fTree = tree;
+			fNode = node;
+			fTerm = term;
+		}
+	}
+
+	/**
+	 * @return true iff two subtrees, possibly of different trees, have the
+	 *         same types, the same leaf text and the same text between their
+	 *         nodes
+	 */
+	private boolean same(Tree ta, Object a, Tree tb, Object b) {
+		if (a == b && ta == tb) {
+			return true;
+		}
+		if (!ta.hash(a).equals(tb.hash(b)) || !fAdapter.getTypeOf(a).equals(fAdapter.getTypeOf(b))) {
+			return false;
+		}
+
+		Object[] as = fAdapter.getChildren(a);
+		Object[] bs = fAdapter.getChildren(b);
+
+		if (as.length != bs.length) {
+			return false;
+		}
+		if (as.length == 0) {
+			return ta.getText(a).equals(tb.getText(b));
+		}
+
+		for (int i = 0; i <= as.length; i++) {
+			if (!ta.getGap(a, as, i).equals(tb.getGap(b, bs, i))) {
+				return false;
+			}
+			if (i < as.length && !same(ta, as[i], tb, bs[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The state of translating one AST.
+	 *
+	 * The term of a node only depends on the node's subtree and text, so the
+	 * nodes can be translated on demand instead of strictly bottom-up: a node
+	 * is matched first, and only the nodes bound to the meta variables of the
+	 * matching rule are translated. The nodes that a pattern of more than one
+	 * level consumes are never translated, where the bottom-up traversal
+	 * translates them and then throws the result away.
+	 *
+	 * Subtrees with the same structure and text have the same term, so terms
+	 * are memoized on a structural hash, both within this translation and
+	 * from the previous one. After an edit, only the subtrees that contain the
+	 * edit are translated again.
+	 */
+	private class Transformation {
+		private final Tree fTree;
+
+		private final Map<Integer, List<Translated>> fPrevious;
+
+		private final Map<Object, BoxTerm> fTerms = new IdentityHashMap<Object, BoxTerm>();
+
+		private final Map<Integer, List<Translated>> fTranslated = new HashMap<Integer, List<Translated>>();
+
+		public Transformation(String source, Map<Integer, List<Translated>> previous) {
+			fTree = new Tree(source);
+			fPrevious = previous;
+		}
+
+		public Map<Integer, List<Translated>> getTranslated() {
+			return fTranslated;
+		}
+
+		public BoxTerm transform(Object node) {
+			BoxTerm term = fTerms.get(node);
+
+			if (term != null) {
+				return term;
+			}
+
+			Object[] children = fAdapter.getChildren(node);
+
+			if (children.length > 0) {
+				term = find(fTranslated, node);
+
+				if (term == null) {
+					term = find(fPrevious, node);
+				}
+			}
+
+			if (term == null) {
+				RuleIndex.Match match = fIndex.match(node, fTree.fSource);
+
+				if (match != null && match.getBoxString() != null) {
+					Map<String, BoxTerm> bindings = new HashMap<String, BoxTerm>();
+
+					for (Map.Entry<String, Object> binding : match.getBindings().entrySet()) {
+						bindings.put(binding.getKey(), transform(binding.getValue()));
+					}
+					term = fTemplates.get(match.getBoxString()).fill(bindings);
+				} else {
+					List<BoxTerm> childTerms = new ArrayList<BoxTerm>(children.length);
+
+					for (Object child : children) {
+						childTerms.add(transform(child));
+					}
+					term = getDefault(node, children, childTerms, fTree.fSource);
+				}
+			}
+
+			if (children.length > 0) {
+				remember(node, term);
+			}
+
+			fTerms.put(node, term);
+			return term;
+		}
+
+		/**
+		 * @return the term of a subtree translated before with the same
+		 *         structure and text as the given node, or null
+		 */
+		private BoxTerm find(Map<Integer, List<Translated>> translated, Object node) {
+			List<Translated> candidates = translated != null ? translated.get(fTree.hash(node)) : null;
+
+			if (candidates != null) {
+				for (Translated candidate : candidates) {
+					if (same(candidate.fTree, candidate.fNode, fTree, node)) {
+						return candidate.fTerm;
+					}
+				}
+			}
+			return null;
+		}
+
+		private void remember(Object node, BoxTerm term) {
+			Integer hash = fTree.hash(node);
+			List<Translated> nodes = fTranslated.get(hash);
+
+			if (nodes == null) {
+				nodes = new ArrayList<Translated>(1);
+				fTranslated.put(hash, nodes);
+			}
+			if (find(fTranslated, node) == null) {
+				nodes.add(new Translated(fTree, node, term));
+			}
+		}
+	}
+
+	/**
+	 * A replacement of a range of the source by formatted text.
+	 */
+	public static class Edit {
+		private final int fOffset;
+
+		private final int fLength;
+
+		private final String fText;
+
+		public Edit(int offset, int length, String text) {
+			fOffset = offset;
+			fLength = length;
+			fText = text;
+		}
+
+		public int getOffset() {
+			return fOffset;
+		}
+
+		public int getLength() {
+			return fLength;
+		}
+
+		public String getText() {
+			return fText;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.imp.services.IASTAdapter;
+
+/**
+ * Matches the pattern of a formatting rule against a node of a source AST.
+ *
+ * A meta variable in the pattern matches any subtree, and is bound to it; a
+ * meta variable that occurs twice must match the same text twice. Other
+ * pattern nodes match nodes of the same type with the same number of
+ * children, and leaves must also have the same text.
+ *
+ * The text of a node is found through the offsets reported by the
+ * IASTAdapter, so every AST comes with the text it was parsed from.
+ */
+public class PatternMatcher {
+	private final IASTAdapter fAdapter;
+
+	public PatternMatcher(IASTAdapter adapter) {
+		fAdapter = adapter;
+	}
+
+	/**
+	 * @return the bindings of the meta variables, by name, or null if the
+	 *         pattern does not match
+	 */
+	public Map<String, Object> match(Object pattern, String patternText, Object node, String text) {
+		Map<String, Object> bindings = new HashMap<String, Object>();
+
+		return match(pattern, patternText, node, text, bindings) ? bindings : null;
+	}
+
+	private boolean match(Object pattern, String patternText, Object node, String text, Map<String, Object> bindings) {
+		if (fAdapter.isMetaVariable(pattern)) {
+			String name = getText(pattern, patternText);
+			Object bound = bindings.get(name);
+
+			if (bound != null) {
+				return getText(bound, text).equals(getText(node, text));
+			}
+
+			bindings.put(name, node);
+			return true;
+		}
+
+		if (!fAdapter.getTypeOf(pattern).equals(fAdapter.getTypeOf(node))) {
+			return false;
+		}
+
+		Object[] patternChildren = fAdapter.getChildren(pattern);
+		Object[] children = fAdapter.getChildren(node);
+
+		if (patternChildren.length != children.length) {
+			return false;
+		}
+
+		if (children.length == 0) {
+			return getText(pattern, patternText).equals(getText(node, text));
+		}
+
+		for (int i = 0; i < children.length; i++) {
+			if (!match(patternChildren[i], patternText, children[i], text, bindings)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the source text of a node
+	 */
+	public String getText(Object node, String text) {
+		int offset = Math.max(0, Math.min(fAdapter.getOffset(node), text.length()));
+		int end = Math.max(offset, Math.min(offset + fAdapter.getLength(node), text.length()));
+
+		return text.substring(offset, end);
+	}
+
+	/**
+	 * @return what must be equal about a pattern node and a node for them to
+	 *         match, apart from their children: the type and the number of
+	 *         children, or the type and the text of a leaf
+	 */
+	String getSymbol(Object node, String text) {
+		Object[] children = fAdapter.getChildren(node);
+
+		if (children.length == 0) {
+			return fAdapter.getTypeOf(node) + "'" + getText(node, text);
+		}
+		return fAdapter.getTypeOf(node) + "/" + children.length;
+	}
+
+	IASTAdapter getAdapter() {
+		return fAdapter;
+	}
+}
@@ -0,0 +1,312 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Parser;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.services.IASTAdapter;
+
+/**
+ * Finds the first rule of a specification whose pattern matches an AST node,
+ * without trying every rule.
+ *
+ * The patterns are stored in a discrimination tree: every pattern is
+ * flattened to the sequence of symbols of its nodes in pre-order (see
+ * {@link PatternMatcher}), where a meta variable becomes a wildcard that
+ * stands for a whole subtree. Looking up a node walks the tree along the
+ * symbols of the node and its descendants, so only rules whose pattern has
+ * the same shape as the node are considered, however many rules there are
+ * for the type of the node.
+ *
+ * The candidates are then matched in the order of the specification and the
+ * first one that matches wins, exactly as when all rules are tried in order.
+ *
+ * An index does not change after it is built, and may be used from any
+ * thread.
+ */
+public class RuleIndex {
+	private final PatternMatcher fMatcher;
+
+	private final List<IndexedRule> fRules = new ArrayList<IndexedRule>();
+
+	private final TrieNode fRoot = new TrieNode();
+
+	/**
+	 * Builds the index. Patterns that have no AST yet are parsed with the
+	 * parser of the specification, so this must be called on the thread that
+	 * owns the specification. Rules whose pattern does not parse can never
+	 * match, and are left out.
+	 */
+	public RuleIndex(Specification spec, IASTAdapter adapter) {
+		fMatcher = new PatternMatcher(adapter);
+
+		Parser parser = spec.getParser();
+		Iterator<Item> iter = spec.ruleIterator();
+
+		while (iter.hasNext()) {
+			Item item = iter.next();
+
+			if (!(item instanceof Rule)) {
+				continue;
+			}
+
+			Rule rule = (Rule) item;
+			String patternText = rule.getPatternString();
+			Object pattern = rule.getPatternAst();
+
+			if (patternText == null || patternText.length() == 0) {
+				continue;
+			}
+			if (pattern == null && parser != null) {
+				pattern = parser.parseObject(patternText);
+			}
+			if (pattern == null) {
+				continue;
+			}
+
+			insert(pattern, patternText, fRules.size());
+			fRules.add(new IndexedRule(rule, rule.getBoxString(), pattern, patternText));
+		}
+	}
+
+	public PatternMatcher getMatcher() {
+		return fMatcher;
+	}
+
+	/**
+	 * @return the rules in the index, in the order of the specification
+	 */
+	List<IndexedRule> getRules() {
+		return fRules;
+	}
+
+	/**
+	 * @return the number of rules in the index
+	 */
+	public int size() {
+		return fRules.size();
+	}
+
+	/**
+	 * @return the first rule, in the order of the specification, that matches
+	 *         the given node, or null if none does
+	 */
+	public Match match(Object node, String text) {
+		for (Integer i : getCandidates(node, text)) {
+			IndexedRule rule = fRules.get(i.intValue());
+			Map<String, Object> bindings = fMatcher.match(rule.fPattern, rule.fPatternText, node, text);
+
+			if (bindings != null) {
+				return new Match(rule, bindings);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the positions of the rules that may match the given node, in
+	 *         the order of the specification
+	 */
+	SortedSet<Integer> getCandidates(Object node, String text) {
+		SortedSet<Integer> result = new TreeSet<Integer>();
+
+		collect(fRoot, new Pending(node, null), text, result);
+		return result;
+	}
+
+	private void insert(Object pattern, String patternText, int rule) {
+		List<String> symbols = new ArrayList<String>();
+		TrieNode node = fRoot;
+
+		flatten(pattern, patternText, symbols);
+
+		for (String symbol : symbols) {
+			node = node.getOrCreate(symbol);
+		}
+		node.fRules.add(Integer.valueOf(rule));
+	}
+
+	private void flatten(Object pattern, String patternText, List<String> symbols) {
+		IASTAdapter adapter = fMatcher.getAdapter();
+
+		if (adapter.isMetaVariable(pattern)) {
+			symbols.add(null);
+			return;
+		}
+
+		symbols.add(fMatcher.getSymbol(pattern, patternText));
+
+		for (Object child : adapter.getChildren(pattern)) {
+			flatten(child, patternText, symbols);
+		}
+	}
+
+	/**
+	 * Walks the tree along the pre-order symbols of the pending nodes. A
+	 * wildcard edge skips the whole subtree of the next pending node.
+	 */
+	private void collect(TrieNode trie, Pending pending, String text, SortedSet<Integer> result) {
+		if (pending == null) {
+			result.addAll(trie.fRules);
+			return;
+		}
+
+		Object node = pending.fNode;
+
+		if (trie.fWildcard != null) {
+			collect(trie.fWildcard, pending.fNext, text, result);
+		}
+
+		if (trie.fChildren != null) {
+			TrieNode next = trie.fChildren.get(fMatcher.getSymbol(node, text));
+
+			if (next != null) {
+				Object[] children = fMatcher.getAdapter().getChildren(node);
+				Pending rest = pending.fNext;
+
+				for (int i = children.length - 1; i >= 0; i--) {
+					rest = new Pending(children[i], rest);
+				}
+				collect(next, rest, text, result);
+			}
+		}
+	}
+
+	/**
+	 * A node of the discrimination tree.
+	 */
+	private static class TrieNode {
+		private Map<String, TrieNode> fChildren;
+
+		private TrieNode fWildcard;
+
+		/**
+		 * The rules whose pattern ends here.
+		 */
+		private final List<Integer> fRules = new ArrayList<Integer>(1);
+
+		/**
+		 * @param symbol
+		 *            a symbol, or null for the wildcard
+		 */
+		public TrieNode getOrCreate(String symbol) {
+			if (symbol == null) {
+				if (fWildcard == null) {
+					fWildcard = new TrieNode();
+				}
+				return fWildcard;
+			}
+
+			if (fChildren == null) {
+				fChildren = new HashMap<String, TrieNode>();
+			}
+
+			TrieNode child = fChildren.get(symbol);
+
+			if (child == null) {
+				child = new TrieNode();
+				fChildren.put(symbol, child);
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * An immutable stack of the nodes that remain to be visited.
+	 */
+	private static class Pending {
+		private final Object fNode;
+
+		private final Pending fNext;
+
+		public Pending(Object node, Pending next) {
+			fNode = node;
+			fNext = next;
+		}
+	}
+
+	/**
+	 * A rule with its pattern, as it was when the index was built.
+	 */
+	static class IndexedRule {
+		private final Rule fRule;
+
+		private final String fBoxString;
+
+		private final Object fPattern;
+
+		private final String fPatternText;
+
+		public IndexedRule(Rule rule, String boxString, Object pattern, String patternText) {
+			fRule = rule;
+			fBoxString = boxString;
+			fPattern = pattern;
+			fPatternText = patternText;
+		}
+
+		String getBoxString() {
+			return fBoxString;
+		}
+	}
+
+	/**
+	 * A rule that matches a node, with the bindings of its meta variables.
+	 */
+	public static class Match {
+		private final IndexedRule fRule;
+
+		private final Map<String, Object> fBindings;
+
+		private Match(IndexedRule rule, Map<String, Object> bindings) {
+			fRule = rule;
+			fBindings = bindings;
+		}
+
+		public Rule getRule() {
+			return fRule.fRule;
+		}
+
+		/**
+		 * @return the Box string of the rule, as it was when the index was
+		 *         built
+		 */
+		public String getBoxString() {
+			return fRule.fBoxString;
+		}
+
+		public Object getPattern() {
+			return fRule.fPattern;
+		}
+
+		public String getPatternText() {
+			return fRule.fPatternText;
+		}
+
+		/**
+		 * @return the nodes bound to the meta variables of the pattern, by
+		 *         name
+		 */
+		public Map<String, Object> getBindings() {
+			return fBindings;
+		}
+	}
+}
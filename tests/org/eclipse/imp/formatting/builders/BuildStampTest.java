@@ -0,0 +1,48 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.builders;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class BuildStampTest extends TestCase {
+	private static final byte[] ARTIFACT = { 1, 2, 3 };
+
+	private final String fArtifactDigest = BuildStamp.digest(new ByteArrayInputStream(ARTIFACT));
+
+	public void testMatches() {
+		String stamp = BuildStamp.create("source+dependency", ARTIFACT);
+
+		assertTrue(BuildStamp.matches(stamp, "source+dependency", fArtifactDigest));
+		assertFalse(BuildStamp.matches(stamp, "source+other", fArtifactDigest));
+		assertFalse(BuildStamp.matches(stamp, "source+dependency", "other"));
+		assertFalse(BuildStamp.matches(null, "source+dependency", fArtifactDigest));
+	}
+
+	public void testMatchesContents() {
+		String stamp = BuildStamp.create("source+dependency+manifest", ARTIFACT);
+
+		assertTrue(BuildStamp.matchesContents(stamp, "source", fArtifactDigest));
+		assertFalse(BuildStamp.matchesContents(stamp, "changed", fArtifactDigest));
+		assertFalse(BuildStamp.matchesContents(stamp, "source", "changed"));
+		assertFalse(BuildStamp.matchesContents(stamp, null, fArtifactDigest));
+		assertFalse(BuildStamp.matchesContents(null, "source", fArtifactDigest));
+	}
+
+	public void testWithoutDependencies() {
+		String stamp = BuildStamp.create("source", ARTIFACT);
+
+		assertTrue(BuildStamp.matchesContents(stamp, "source", fArtifactDigest));
+		assertFalse(BuildStamp.matchesContents(stamp, "sourc", fArtifactDigest));
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.builders;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * Builds a specification in a workspace project and reads its compiled form
+ * back. Must run as a plug-in test.
+ */
+public class FormattingSpecificationBuilderTest extends TestCase {
+	private static final String SPEC =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<formatter>\n" +
+		"<language>" + FormattingSpecificationBuilder.LANGUAGE_NAME + "</language>\n" +
+		"<rules>\n" +
+		"</rules>\n" +
+		"<space-options/>\n" +
+		"<example></example>\n" +
+		"</formatter>\n";
+
+	private IProject fProject;
+
+	protected void setUp() throws Exception {
+		fProject = ResourcesPlugin.getWorkspace().getRoot().getProject("FormattingSpecificationBuilderTest");
+
+		if (fProject.exists()) {
+			fProject.delete(true, true, null);
+		}
+		fProject.create(null);
+		fProject.open(null);
+		new FormattingSpecificationNature().addToProject(fProject);
+	}
+
+	protected void tearDown() throws Exception {
+		fProject.delete(true, true, null);
+	}
+
+	public void testBuildWritesReadableArtifact() throws Exception {
+		IFile source = fProject.getFile(new Path("test.fsp"));
+
+		source.create(new ByteArrayInputStream(SPEC.getBytes("UTF-8")), true, null);
+		fProject.build(IncrementalProjectBuilder.FULL_BUILD, new NullProgressMonitor());
+
+		IFile artifact = fProject.getWorkspace().getRoot().getFile(CompiledSpecification.getArtifactPath(source.getFullPath()));
+
+		assertTrue("no artifact was written", artifact.exists());
+
+		InputStream in = artifact.getContents();
+		CompiledSpecification compiled;
+
+		try {
+			compiled = CompiledSpecification.read(in);
+		} finally {
+			in.close();
+		}
+
+		assertEquals(FormattingSpecificationBuilder.LANGUAGE_NAME, compiled.getLanguage());
+		assertEquals(0, compiled.getEntries().size());
+
+		assertNotNull("the artifact is not considered current", CompiledSpecification.load(source));
+	}
+}
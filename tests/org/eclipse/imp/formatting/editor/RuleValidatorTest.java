@@ -0,0 +1,73 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import junit.framework.TestCase;
+
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+
+public class RuleValidatorTest extends TestCase {
+	private Specification fSpec;
+
+	private Rule fIndent;
+
+	private Rule fWidth;
+
+	protected void setUp() throws Exception {
+		fSpec = new Specification("test", null);
+		fSpec.setSpaceOption("$indent", 2);
+		fSpec.setSpaceOption("$width", 1);
+
+		fIndent = addRule(fSpec, "V is=$indent [ \"a\" \"b\" ]");
+		fWidth = addRule(fSpec, "H hs=$width [ \"a\" \"b\" ]");
+	}
+
+	private static Rule addRule(Specification spec, String box) {
+		Rule rule = new Rule();
+
+		rule.setBoxString(box);
+		spec.addRule(rule);
+		return rule;
+	}
+
+	/**
+	 * Editing one option and then another, before the rules of the first are
+	 * validated, must not make their results stale.
+	 */
+	public void testTwoOptionsEditedBackToBack() {
+		fSpec.setSpaceOption("$indent", 4);
+		RuleValidator.Request indent = RuleValidator.prepare(fSpec, fIndent, true);
+
+		fSpec.setSpaceOption("$width", 3);
+		RuleValidator.Request width = RuleValidator.prepare(fSpec, fWidth, true);
+
+		assertTrue(indent.isCurrent(fSpec));
+		assertTrue(width.isCurrent(fSpec));
+	}
+
+	public void testOwnOptionEditedAgain() {
+		RuleValidator.Request indent = RuleValidator.prepare(fSpec, fIndent, true);
+
+		fSpec.setSpaceOption("$indent", 8);
+
+		assertFalse(indent.isCurrent(fSpec));
+	}
+
+	public void testRuleEdited() {
+		RuleValidator.Request width = RuleValidator.prepare(fSpec, fWidth, true);
+
+		fWidth.setBoxString("H hs=$width [ \"c\" ]");
+
+		assertFalse(width.isCurrent(fSpec));
+	}
+}
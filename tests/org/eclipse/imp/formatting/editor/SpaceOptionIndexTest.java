@@ -0,0 +1,75 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.editor;
+
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+
+public class SpaceOptionIndexTest extends TestCase {
+	private Rule fIndent;
+
+	private Rule fIndent2;
+
+	private Rule fMaxWidth;
+
+	private SpaceOptionIndex fIndex;
+
+	protected void setUp() throws Exception {
+		Specification spec = new Specification("test", null);
+
+		fIndent = addRule(spec, "H hs=$indent [ \"a\" \"b\" ]");
+		fIndent2 = addRule(spec, "V is=$indent2 [ \"a\" \"b\" ]");
+		fMaxWidth = addRule(spec, "HOV hs=$max_width [ \"a\" ]");
+		fIndex = new SpaceOptionIndex(spec);
+	}
+
+	private static Rule addRule(Specification spec, String box) {
+		Rule rule = new Rule();
+
+		rule.setBoxString(box);
+		spec.addRule(rule);
+		return rule;
+	}
+
+	public void testNameWithDigits() {
+		Set<Rule> rules = fIndex.getRulesReferencing("$indent2");
+
+		assertEquals(1, rules.size());
+		assertTrue(rules.contains(fIndent2));
+	}
+
+	public void testNameWithUnderscore() {
+		Set<Rule> rules = fIndex.getRulesReferencing("$max_width");
+
+		assertEquals(1, rules.size());
+		assertTrue(rules.contains(fMaxWidth));
+	}
+
+	public void testPrefixMayReportMore() {
+		Set<Rule> rules = fIndex.getRulesReferencing("$indent");
+
+		assertTrue(rules.contains(fIndent));
+		assertTrue(rules.contains(fIndent2));
+	}
+
+	public void testUpdate() {
+		fIndent2.setBoxString("V is=$indent_3 [ \"a\" ]");
+		fIndex.update(fIndent2);
+
+		assertEquals(0, fIndex.getRulesReferencing("$indent2").size());
+		assertTrue(fIndex.getRulesReferencing("$indent_3").contains(fIndent2));
+	}
+}
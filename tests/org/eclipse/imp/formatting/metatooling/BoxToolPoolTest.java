@@ -0,0 +1,99 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.imp.box.builders.BoxException;
+
+/**
+ * Checks that batched runs of the Box tools give the same text as single
+ * runs. Must run as a plug-in test, with the Box tools installed.
+ */
+public class BoxToolPoolTest extends TestCase {
+	private static final String[] BOXES = {
+		"H [ \"a\" \"b\" ]",
+		"V [ \"a\" I [ \"b\" ] \"c\" ]",
+		"V [ H [ \"if\" \"(\" \"x\" \")\" \"{\" ] I [ V [ \"y\" I [ V [ \"z\" \"w\" ] ] ] ] \"}\" ]",
+		"I [ V [ \"a\" \"b\" ] ]",
+		"V is=4 [ \"a\" I [ V [ \"b\" I is=3 [ \"c\" ] ] ] ]",
+		"HOV [ \"a\" I [ V [ \"b\" \"c\" ] ] G gs=2 op=H hs=0 [ \"d\" \"e\" \"f\" ] ]",
+		"V vs=1 [ H [ \"a\" \"=\" \"1\" ] I [ HV [ \"b\" \"c\" ] ] ]"
+	};
+
+	private BoxToolPool fPool;
+
+	protected void setUp() throws Exception {
+		fPool = new BoxToolPool(1);
+		assertTrue("the Box tools are not available", fPool.isHealthy());
+	}
+
+	protected void tearDown() throws Exception {
+		fPool.shutdown();
+	}
+
+	public void testBatchEqualsSingle() throws Exception {
+		List<String> texts = fPool.renderBatch(BOXES);
+
+		// the pool may have found that batching does not work, and then it
+		// does not batch
+		if (texts != null) {
+			for (int i = 0; i < BOXES.length; i++) {
+				assertEquals(BOXES[i], BoxToolPool.run(BOXES[i]), texts.get(i));
+			}
+		}
+	}
+
+	public void testConcurrentRequestsEqualSingle() throws Exception {
+		final String[] results = new String[BOXES.length];
+		final BoxException[] errors = new BoxException[BOXES.length];
+		Thread[] threads = new Thread[BOXES.length];
+
+		// with one worker, requests made while it is busy end up in one batch
+		for (int i = 0; i < BOXES.length; i++) {
+			final int index = i;
+
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						results[index] = fPool.box2Text(BOXES[index]);
+					} catch (BoxException e) {
+						errors[index] = e;
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (int i = 0; i < BOXES.length; i++) {
+			threads[i].join();
+			assertNull(BOXES[i], errors[i]);
+			assertEquals(BOXES[i], BoxToolPool.run(BOXES[i]), results[i]);
+		}
+	}
+
+	public void testDefaultAfterRestart() throws Exception {
+		BoxToolPool.shutdownDefault();
+
+		try {
+			BoxToolPool.getDefault();
+			fail("the shared pool was shut down");
+		} catch (BoxException e) {
+			// expected
+		}
+
+		BoxToolPool.startDefault();
+		assertEquals(BOXES[0], BoxToolPool.run(BOXES[0]), BoxToolPool.getDefault().box2Text(BOXES[0]));
+	}
+}
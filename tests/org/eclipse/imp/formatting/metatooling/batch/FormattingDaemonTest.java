@@ -0,0 +1,86 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the replies of the daemon to requests that are refused before a
+ * specification is loaded.
+ */
+public class FormattingDaemonTest extends TestCase {
+	private FormattingDaemon fDaemon;
+
+	private Socket fSocket;
+
+	private File fSpec;
+
+	protected void setUp() throws Exception {
+		File root = new File(System.getProperty("java.io.tmpdir"));
+
+		fSpec = new File(root, "formatting-daemon-test.fsp");
+		fDaemon = new FormattingDaemon(0, 1, Collections.singletonList(root));
+
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				try {
+					fDaemon.serve();
+				} catch (Exception e) {
+					// the test fails on the connection
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+
+		fSocket = new Socket("127.0.0.1", fDaemon.getPort());
+	}
+
+	protected void tearDown() throws Exception {
+		fSocket.close();
+		fDaemon.shutdown();
+	}
+
+	public void testRangeLengthOverflows() throws Exception {
+		OutputStream out = fSocket.getOutputStream();
+		BufferedReader in = new BufferedReader(new InputStreamReader(fSocket.getInputStream(), "UTF-8"));
+
+		out.write(("RANGE 1 " + Integer.MAX_VALUE + " 3 " + fSpec.getAbsolutePath() + "\nabc").getBytes("UTF-8"));
+		out.flush();
+
+		String reply = in.readLine();
+		assertTrue(reply, reply.startsWith("ERROR Range outside of the source"));
+
+		// the connection is still usable
+		out.write("PING\n".getBytes("UTF-8"));
+		out.flush();
+		assertEquals("OK 0", in.readLine());
+	}
+
+	public void testRangeOffsetPastEnd() throws Exception {
+		OutputStream out = fSocket.getOutputStream();
+		BufferedReader in = new BufferedReader(new InputStreamReader(fSocket.getInputStream(), "UTF-8"));
+
+		out.write(("RANGE " + Integer.MAX_VALUE + " 0 3 " + fSpec.getAbsolutePath() + "\nabc").getBytes("UTF-8"));
+		out.flush();
+
+		String reply = in.readLine();
+		assertTrue(reply, reply.startsWith("ERROR Range outside of the source"));
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import junit.framework.TestCase;
+
+import org.eclipse.imp.formatting.metatooling.BoxRenderer;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.formatting.spec.Transformer;
+
+/**
+ * Checks that the BoxTransformer gives the same text as the Transformer of
+ * the formatting plugin, on the example of templates/formatter.fsp with
+ * rules of that template. The example is written as a term (see
+ * {@link TestTrees}); the constructs without a rule, such as functions,
+ * parameters, blocks of several statements and returns, are laid out by the
+ * defaults of both transformers. Must run as a plug-in test, with the Box
+ * tools installed.
+ */
+public class BoxTransformerTest extends TestCase {
+	private static final String[] PATTERNS = {
+		"neq($expr0, $term0)",
+		"eq($expr0, $term0)",
+		"mul($expr0, $term0)",
+		"gt($expr0, $term0)",
+		"minus($expr0, $term0)",
+		"plus($expr0, $term0)",
+		"assign($id0, $expr0)",
+		"call($id0, $exprs0)",
+		"decl($id0)",
+		"if($expr0, block($stats0))",
+		"ifelse($expr0, block($stats0), block($stats1))",
+		"while($expr0, block($stats0))",
+		"while($expr0, $stat0)"
+	};
+
+	private static final String[] BOXES = {
+		"H [ \"$expr0\" \"!=\" \"$term0\" ]",
+		"H [ \"$expr0\" \"==\" \"$term0\" ]",
+		"G [ \"$expr0\" H [ \"*\" \"$term0\" ] ]",
+		"G [ \"$expr0\" H [ \">\" \"$term0\" ] ]",
+		"G [ \"$expr0\" H [ \"-\" \"$term0\" ] ]",
+		"G [ \"$expr0\"  H [ \"+\" \"$term0\" ] ]",
+		"H [ \"$id0\" \"=\" H hs=0 [HV [ \"$expr0\" ] \";\" ]]",
+		"H hs=0 [ \"$id0\"\"(\"HOV [\n G gs=2 op=H hs=0 [ \"$exprs0\" ]\n ]\")\" ]",
+		"HV [ \"int\" H hs=0 [ \"$id0\"\";\" ] ]",
+		"V [\nH [ \"if\" H hs=0 [ \"(\"\"$expr0\"\")\" ] \"{\" ]\nI [\n  V [\n  \"$stats0\"\n  ]\n]\n\"}\"\n]",
+		"V [\nH [ \"if\" H hs=0 [ \"(\"\"$expr0\"\")\" ] \"{\" ]\nI [\n  V [\n  \"$stats0\"\n  ]\n]\n\"}\"\nH [ \"else\" \"{\" ]\nI [\n  V [\n  \"$stats1\"\n  ]\n]\n\"}\"\n]",
+		"V [\nH [ \"while\" H hs=0 [ \"(\" HV [\"$expr0\" ] \")\" ] \"{\" ]\nI [\n  V [\n  \"$stats0\"\n  ]\n]\n\"}\"\n]",
+		"HV [ H [ \"while\" H hs=0 [ \"(\" HV [ \"$expr0\" ] \")\" ] ] I [\n HV [ \"$stat0\" ]\n ] ]"
+	};
+
+	private static final String FACTORIAL =
+		"fun(int, factorial, params(param(int, n)), block("
+		+ "ifelse(eq(n, 0), block(return(1)), block(ifelse(eq(n, 1), block(return(1)), block(return(mul(n, call(factorial, minus(n, 1)))))))), "
+		+ "while(gt(n, 0), assign(n, minus(n, 1))), "
+		+ "while(gt(n, 0), assign(n, plus(minus(n, 1111111111), mul(mul(2222222222, 1), 1)))), "
+		+ "while(gt(n, plus(plus(0, 1), 1)), block(decl(x), assign(x, plus(1, 1)), decl(z)))))";
+
+	private static final String EXP =
+		"fun(int, exp, params(param(int, n), param(int, e)), block("
+		+ "ifelse(eq(e, 0), block(return(1)), block(return(mul(n, call(exp, args(n, minus(e, 1)))))))))";
+
+	private static final String EXAMPLE = "program(" + FACTORIAL + ", " + EXP + ")";
+
+	private Specification fSpec;
+
+	protected void setUp() throws Exception {
+		fSpec = TestTrees.newSpecification(PATTERNS, BOXES);
+	}
+
+	public void testTemplateExample() throws Exception {
+		assertSameText(EXAMPLE);
+	}
+
+	public void testEveryNodeOfTheExample() throws Exception {
+		for (TestTrees.Node node : TestTrees.getNodes(TestTrees.parse(EXAMPLE))) {
+			assertSameText(EXAMPLE, node);
+		}
+	}
+
+	private void assertSameText(String source) throws Exception {
+		assertSameText(source, TestTrees.parse(source));
+	}
+
+	private void assertSameText(String source, Object ast) throws Exception {
+		String expected = BoxRenderer.box2Text(new Transformer(fSpec, TestTrees.ADAPTER).transformToBox(source, ast));
+		String actual = BoxRenderer.box2Text(new BoxTransformer(fSpec, TestTrees.ADAPTER).transformToBox(source, ast));
+
+		assertEquals(ast + " in " + source, expected, actual);
+	}
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.eclipse.imp.formatting.spec.Item;
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+
+/**
+ * Checks that the rule index finds the same rule, with the same bindings, as
+ * trying every rule in order with the PatternMatcher.
+ */
+public class RuleIndexTest extends TestCase {
+	private static final String[] PATTERNS = {
+		"plus(x, $b)",
+		"plus($a, $a)",
+		"plus(plus($a, $b), $c)",
+		"plus($a, 1)",
+		"plus($a, $b)",
+		"neg(1)",
+		"neg($a)",
+		"call(f, $a, $a)",
+		"call($f, $a, $b)",
+		"x",
+		"1"
+	};
+
+	private static final String[] SUBJECTS = {
+		"plus(x, y)",
+		"plus(y, y)",
+		"plus(y, z)",
+		"plus(neg(y), neg(y))",
+		"plus(neg(y), neg(z))",
+		"plus(plus(x, x), x)",
+		"plus(plus(y, 1), 1)",
+		"plus(1, 1)",
+		"neg(1)",
+		"neg(2)",
+		"neg(neg(1))",
+		"call(f, y, y)",
+		"call(f, y, z)",
+		"call(g, plus(x, 1), plus(x, 1))",
+		"call(g, x)",
+		"x",
+		"y",
+		"1",
+		"2"
+	};
+
+	private static final String[] NAMES = { "x", "y", "1", "2" };
+
+	private static final String[] FUNCTIONS = { "plus", "neg", "call" };
+
+	private static final int[] ARITIES = { 2, 1, 3 };
+
+	private Specification fSpec;
+
+	private RuleIndex fIndex;
+
+	protected void setUp() throws Exception {
+		String[] boxes = new String[PATTERNS.length];
+
+		for (int i = 0; i < boxes.length; i++) {
+			boxes[i] = "\"" + i + "\"";
+		}
+		fSpec = TestTrees.newSpecification(PATTERNS, boxes);
+		fIndex = new RuleIndex(fSpec, TestTrees.ADAPTER);
+	}
+
+	public void testAllRulesIndexed() {
+		assertEquals(PATTERNS.length, fIndex.size());
+	}
+
+	public void testOverlappingPatterns() {
+		assertSameMatches(SUBJECTS);
+		assertMatches("plus(x, y)", 0);
+		assertMatches("plus(plus(x, x), x)", 2);
+		assertMatches("plus(y, z)", 4);
+	}
+
+	public void testRepeatedMetaVariables() {
+		assertMatches("plus(y, y)", 1);
+		assertMatches("plus(neg(y), neg(y))", 1);
+		assertMatches("plus(neg(y), neg(z))", 4);
+		assertMatches("call(f, y, y)", 7);
+		assertMatches("call(f, y, z)", 8);
+	}
+
+	public void testLeafText() {
+		assertMatches("neg(1)", 5);
+		assertMatches("neg(2)", 6);
+		assertMatches("x", 9);
+		assertMatches("1", 10);
+		assertMatches("y", -1);
+		assertMatches("call(g, x)", -1);
+	}
+
+	public void testRandomTerms() {
+		Random random = new Random(42);
+		String[] subjects = new String[500];
+
+		for (int i = 0; i < subjects.length; i++) {
+			subjects[i] = randomTerm(random, 3);
+		}
+		assertSameMatches(subjects);
+	}
+
+	private static String randomTerm(Random random, int depth) {
+		if (depth == 0 || random.nextInt(3) == 0) {
+			return NAMES[random.nextInt(NAMES.length)];
+		}
+
+		int f = random.nextInt(FUNCTIONS.length);
+		StringBuilder b = new StringBuilder(FUNCTIONS[f]).append('(');
+
+		for (int i = 0; i < ARITIES[f]; i++) {
+			if (i > 0) {
+				b.append(", ");
+			}
+			b.append(randomTerm(random, depth - 1));
+		}
+		return b.append(')').toString();
+	}
+
+	/**
+	 * Compares the index with a linear scan on every node of the subjects.
+	 */
+	private void assertSameMatches(String[] subjects) {
+		for (int i = 0; i < subjects.length; i++) {
+			for (TestTrees.Node node : TestTrees.getNodes(TestTrees.parse(subjects[i]))) {
+				Rule expected = null;
+				Map<String, Object> expectedBindings = null;
+				Iterator<Item> iter = fSpec.ruleIterator();
+
+				while (expected == null && iter.hasNext()) {
+					Rule rule = (Rule) iter.next();
+
+					expectedBindings = fIndex.getMatcher().match(rule.getPatternAst(), rule.getPatternString(), node, subjects[i]);
+					if (expectedBindings != null) {
+						expected = rule;
+					}
+				}
+
+				RuleIndex.Match match = fIndex.match(node, subjects[i]);
+				String where = node + " in " + subjects[i];
+
+				if (expected == null) {
+					assertNull(where, match);
+				} else {
+					assertNotNull(where, match);
+					assertSame(where, expected, match.getRule());
+					assertEquals(where, expectedBindings, match.getBindings());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param rule
+	 *            the position of the rule that must match the whole subject,
+	 *            or -1 if none may
+	 */
+	private void assertMatches(String subject, int rule) {
+		RuleIndex.Match match = fIndex.match(TestTrees.parse(subject), subject);
+
+		if (rule == -1) {
+			assertNull(subject, match);
+		} else {
+			assertNotNull(subject, match);
+			assertEquals(subject, PATTERNS[rule], match.getPatternText());
+		}
+	}
+}
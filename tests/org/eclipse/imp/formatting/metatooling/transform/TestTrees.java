@@ -0,0 +1,202 @@
+/*******************************************************************************
+* Copyright (c) IBM Corporation 2008
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*    Jurgen Vinju (jurgenv@cwi.nl) - initial API and implementation
+*******************************************************************************/
+
+package org.eclipse.imp.formatting.metatooling.transform;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.imp.formatting.spec.Rule;
+import org.eclipse.imp.formatting.spec.Specification;
+import org.eclipse.imp.services.IASTAdapter;
+
+/**
+ * Small ASTs for testing the transformers without a language. A term is
+ * written <code>f(a, g(b))</code>: a node of type f with two children. A leaf
+ * is a name or a number, of type "id" or "num", and <code>$x</code> is a meta
+ * variable named x.
+ */
+class TestTrees {
+	/**
+	 * Serves the nodes of {@link #parse(String)}. Made as a proxy, so only the
+	 * methods the transformers use need an implementation.
+	 */
+	static final IASTAdapter ADAPTER = (IASTAdapter) Proxy.newProxyInstance(TestTrees.class.getClassLoader(), new Class[] { IASTAdapter.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if (args == null || args.length != 1 || !(args[0] instanceof Node)) {
+				if (name.equals("equals")) {
+					return Boolean.valueOf(proxy == args[0]);
+				}
+				if (name.equals("hashCode")) {
+					return Integer.valueOf(System.identityHashCode(proxy));
+				}
+				if (name.equals("toString")) {
+					return "TestTrees.ADAPTER";
+				}
+				throw new UnsupportedOperationException(name);
+			}
+
+			Node node = (Node) args[0];
+
+			if (name.equals("getChildren")) {
+				return node.fChildren;
+			}
+			if (name.equals("getTypeOf")) {
+				return node.fType;
+			}
+			if (name.equals("isMetaVariable")) {
+				return Boolean.valueOf(node.fMeta);
+			}
+			if (name.equals("getOffset")) {
+				return Integer.valueOf(node.fOffset);
+			}
+			if (name.equals("getLength")) {
+				return Integer.valueOf(node.fLength);
+			}
+			throw new UnsupportedOperationException(name);
+		}
+	});
+
+	private TestTrees() {
+	}
+
+	/**
+	 * @return the root of the term in the given text
+	 */
+	static Node parse(String text) {
+		int[] pos = { 0 };
+		Node result = parse(text, pos);
+
+		skipSpaces(text, pos);
+		if (pos[0] != text.length()) {
+			throw new IllegalArgumentException("Trailing text in " + text);
+		}
+		return result;
+	}
+
+	private static Node parse(String text, int[] pos) {
+		skipSpaces(text, pos);
+
+		int start = pos[0];
+		boolean meta = start < text.length() && text.charAt(start) == '$';
+
+		if (meta) {
+			pos[0]++;
+		}
+		while (pos[0] < text.length() && Character.isLetterOrDigit(text.charAt(pos[0]))) {
+			pos[0]++;
+		}
+
+		String name = text.substring(meta ? start + 1 : start, pos[0]);
+
+		if (name.length() == 0) {
+			throw new IllegalArgumentException("Expected a term at " + start + " in " + text);
+		}
+		if (meta) {
+			return new Node("meta", start, pos[0] - start, new Node[0], true);
+		}
+
+		skipSpaces(text, pos);
+		if (pos[0] == text.length() || text.charAt(pos[0]) != '(') {
+			String type = Character.isDigit(name.charAt(0)) ? "num" : "id";
+
+			return new Node(type, start, pos[0] - start, new Node[0], false);
+		}
+
+		List<Node> children = new ArrayList<Node>();
+
+		pos[0]++;
+		while (true) {
+			children.add(parse(text, pos));
+			skipSpaces(text, pos);
+
+			char c = text.charAt(pos[0]++);
+
+			if (c == ')') {
+				break;
+			}
+			if (c != ',') {
+				throw new IllegalArgumentException("Expected , or ) at " + (pos[0] - 1) + " in " + text);
+			}
+		}
+		return new Node(name, start, pos[0] - start, children.toArray(new Node[children.size()]), false);
+	}
+
+	private static void skipSpaces(String text, int[] pos) {
+		while (pos[0] < text.length() && text.charAt(pos[0]) == ' ') {
+			pos[0]++;
+		}
+	}
+
+	/**
+	 * @return a specification with a rule for every pattern, in order, with
+	 *         the pattern ASTs already set
+	 */
+	static Specification newSpecification(String[] patterns, String[] boxes) {
+		Specification spec = new Specification("test", null);
+
+		for (int i = 0; i < patterns.length; i++) {
+			Rule rule = new Rule();
+
+			rule.setPatternString(patterns[i]);
+			rule.setPatternAst(parse(patterns[i]));
+			rule.setBoxString(boxes[i]);
+			spec.addRule(rule);
+		}
+		return spec;
+	}
+
+	/**
+	 * @return the given node and all its descendants, in pre-order
+	 */
+	static List<Node> getNodes(Node root) {
+		List<Node> result = new ArrayList<Node>();
+
+		addNodes(root, result);
+		return result;
+	}
+
+	private static void addNodes(Node node, List<Node> result) {
+		result.add(node);
+		for (int i = 0; i < node.fChildren.length; i++) {
+			addNodes(node.fChildren[i], result);
+		}
+	}
+
+	static class Node {
+		private final String fType;
+
+		private final int fOffset;
+
+		private final int fLength;
+
+		private final Node[] fChildren;
+
+		private final boolean fMeta;
+
+		public Node(String type, int offset, int length, Node[] children, boolean meta) {
+			fType = type;
+			fOffset = offset;
+			fLength = length;
+			fChildren = children;
+			fMeta = meta;
+		}
+
+		public String toString() {
+			return fType + "@" + fOffset;
+		}
+	}
+}